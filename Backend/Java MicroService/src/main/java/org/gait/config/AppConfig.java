@@ -1,14 +1,179 @@
 package org.gait.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+
 @Configuration
+@EnableScheduling
 public class AppConfig {
 
+    private static final Logger LOG = LoggerFactory.getLogger(AppConfig.class);
+
+    @Bean
+    public RestTemplate restTemplate(CloseableHttpClient httpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+    }
+
+    /**
+     * Keep-alive connection pool shared by all outbound RestTemplate calls (NLP, GitHub, Countries).
+     * Each upstream gets its own per-route limit so a slow one cannot take every connection.
+     */
+    @Bean
+    public PoolingHttpClientConnectionManager httpConnectionManager(
+            MeterRegistry meterRegistry,
+            @Value("${http.client.connect-timeout-ms:2000}") long connectTimeoutMs,
+            @Value("${http.client.read-timeout-ms:30000}") long readTimeoutMs,
+            @Value("${http.client.connection-ttl-seconds:300}") long connectionTtlSeconds,
+            @Value("${http.client.max-total:100}") int maxTotal,
+            @Value("${http.client.max-per-route:20}") int defaultMaxPerRoute,
+            @Value("${nlp.endpoint:http://localhost:5000/parse/with-api-detection}") String nlpEndpoint,
+            @Value("${http.client.max-per-route.nlp:20}") int nlpMaxPerRoute,
+            @Value("${graphql.github.endpoint:https://api.github.com/graphql}") String githubEndpoint,
+            @Value("${http.client.max-per-route.github:10}") int githubMaxPerRoute,
+            @Value("${graphql.countries.endpoint:https://countries.trevorblades.com/}") String countriesEndpoint,
+            @Value("${http.client.max-per-route.countries:10}") int countriesMaxPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new MeteredConnectionManager(meterRegistry);
+        connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                .setTimeToLive(TimeValue.ofSeconds(connectionTtlSeconds))
+                .build());
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+        connectionManager.setMaxPerRoute(routeOf(nlpEndpoint), nlpMaxPerRoute);
+        connectionManager.setMaxPerRoute(routeOf(githubEndpoint), githubMaxPerRoute);
+        connectionManager.setMaxPerRoute(routeOf(countriesEndpoint), countriesMaxPerRoute);
+
+        // httpcomponents.httpclient.pool.* gauges: leased, available, pending, max
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "outbound").bindTo(meterRegistry);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient httpClient(
+            PoolingHttpClientConnectionManager httpConnectionManager,
+            @Value("${http.client.pool-acquire-timeout-ms:1000}") long poolAcquireTimeoutMs,
+            @Value("${http.client.idle-evict-seconds:30}") long idleEvictSeconds) {
+        return HttpClients.custom()
+                .setConnectionManager(httpConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolAcquireTimeoutMs))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(idleEvictSeconds))
+                .build();
+    }
+
+    /**
+     * The pool route of an endpoint URL, matching the one the client plans for direct (non-proxied) requests.
+     */
+    private HttpRoute routeOf(String endpoint) {
+        URI uri = URI.create(endpoint);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = (uri.getPort() != -1) ? uri.getPort() : (secure ? 443 : 80);
+        HttpHost host = new HttpHost(uri.getScheme(), uri.getHost(), port);
+        LOG.debug("Connection pool route for {}: {}", endpoint, host);
+        return new HttpRoute(host, null, secure);
+    }
+
+    /**
+     * Small pool for background refreshes of stale cache entries.
+     */
     @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public ThreadPoolTaskExecutor cacheRefreshExecutor(
+            Environment environment,
+            @Value("${cache.stale-while-revalidate.refresh-threads:2}") int threads,
+            @Value("${cache.stale-while-revalidate.refresh-queue-capacity:100}") int queueCapacity) {
+        return boundedExecutor(environment, "cache-refresh-", threads, queueCapacity, true);
+    }
+
+    /**
+     * Pool for speculative NLP parses started alongside the cache lookup.
+     * Full pool means no speculation, so it never adds latency to a request.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor nlpSpeculationExecutor(
+            Environment environment,
+            @Value("${client.nlp.speculation.threads:8}") int threads,
+            @Value("${client.nlp.speculation.queue-capacity:0}") int queueCapacity) {
+        return boundedExecutor(environment, "nlp-speculation-", threads, queueCapacity, false);
+    }
+
+    /**
+     * Pool shared by all batch requests for resolving their cache misses.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor batchPromptExecutor(
+            Environment environment,
+            @Value("${client.batch.threads:16}") int threads,
+            @Value("${client.batch.queue-capacity:200}") int queueCapacity) {
+        return boundedExecutor(environment, "batch-prompt-", threads, queueCapacity, true);
+    }
+
+    /**
+     * Pool for BCrypt hashing on login and registration. Hashing is CPU-bound, so keep the pool around
+     * the core count; a full queue rejects the request with 503 instead of tying up request threads.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor passwordHashingExecutor(
+            Environment environment,
+            @Value("${auth.password.hashing.threads:4}") int threads,
+            @Value("${auth.password.hashing.queue-capacity:50}") int queueCapacity) {
+        return boundedExecutor(environment, "password-hash-", threads, queueCapacity, true);
+    }
+
+    /**
+     * Replaces Spring Boot's applicationTaskExecutor, which backs off because of the executors above.
+     * Spring MVC runs streaming responses on it.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor applicationTaskExecutor(
+            Environment environment,
+            @Value("${spring.task.execution.pool.core-size:8}") int threads,
+            @Value("${spring.task.execution.pool.queue-capacity:100}") int queueCapacity) {
+        return boundedExecutor(environment, "task-", threads, queueCapacity, true);
+    }
+
+    /**
+     * Fixed-size pool that rejects tasks once its queue is full.
+     * In virtual-thread mode (spring.threads.virtual.enabled on Java 21+) its workers are virtual threads;
+     * the pool size and queue still bound how much work hits the upstream APIs at once.
+     */
+    private ThreadPoolTaskExecutor boundedExecutor(Environment environment, String threadNamePrefix,
+                                                   int threads, int queueCapacity, boolean finishOnShutdown) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        if (Threading.VIRTUAL.isActive(environment)) {
+            executor.setThreadFactory(new VirtualThreadTaskExecutor(threadNamePrefix).getVirtualThreadFactory());
+        }
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setWaitForTasksToCompleteOnShutdown(finishOnShutdown);
+        executor.setAwaitTerminationSeconds(10);
+        return executor;
     }
 }
@@ -0,0 +1,54 @@
+package org.gait.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.io.LeaseRequest;
+import org.apache.hc.core5.util.Timeout;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection pool that records how long callers wait to lease a connection, per upstream host.
+ * A growing wait time means the route's pool is too small for the load.
+ */
+class MeteredConnectionManager extends PoolingHttpClientConnectionManager {
+
+    static final String LEASE_TIMER = "http.client.pool.lease";
+
+    private final MeterRegistry meterRegistry;
+
+    MeteredConnectionManager(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public LeaseRequest lease(String id, HttpRoute route, Timeout requestTimeout, Object state) {
+        LeaseRequest lease = super.lease(id, route, requestTimeout, state);
+        Timer timer = Timer.builder(LEASE_TIMER)
+                .description("Time spent waiting for a pooled connection")
+                .tag("host", route.getTargetHost().getHostName())
+                .register(meterRegistry);
+
+        return new LeaseRequest() {
+            @Override
+            public ConnectionEndpoint get(Timeout timeout)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                Timer.Sample sample = Timer.start(meterRegistry);
+                try {
+                    return lease.get(timeout);
+                } finally {
+                    sample.stop(timer);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return lease.cancel();
+            }
+        };
+    }
+}
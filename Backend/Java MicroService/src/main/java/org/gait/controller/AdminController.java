@@ -5,19 +5,35 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.gait.database.service.EndpointCallService;
+import org.gait.dto.Api;
+import org.gait.dto.CallStatsGranularity;
 import org.gait.dto.EndpointCall;
+import org.gait.service.OntologyMappingService;
+import org.gait.service.UserHistoryService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 
 @RestController
 @RequestMapping("/admin")
 @RequiredArgsConstructor
+@Slf4j
 @Tag(name = "Admin", description = "Endpoints for administrative operations")
 public class AdminController {
 
     private final EndpointCallService endpointCallService;
+    private final OntologyMappingService ontologyMappingService;
+    private final UserHistoryService userHistoryService;
+
+    @Value("${call-stats.max-page-size:1000}")
+    private int callStatsMaxPageSize;
 
     @Operation(summary = "Get Call Stats", description = "Returns a list of endpoint call statistics.")
     @ApiResponses(value = {
@@ -28,4 +44,120 @@ public class AdminController {
     public List<EndpointCall> getCallStats() {
         return endpointCallService.getCallStats();
     }
+
+    @Operation(summary = "Get Call Stats Buckets",
+            description = "Returns call counts per minute, hour or day bucket in [from, to), newest first, optionally " +
+                    "for one user and/or API. Defaults to the last hour, day or 30 days depending on the granularity.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved call statistics"),
+            @ApiResponse(responseCode = "400", description = "Invalid time window or page size")
+    })
+    @GetMapping("/call-stats/buckets")
+    public ResponseEntity<?> getCallStatsBuckets(
+            @RequestParam(defaultValue = "HOUR") CallStatsGranularity granularity,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(required = false) Long userId,
+            @RequestParam(required = false) Api api,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "100") int size) {
+        Instant end = (to != null) ? to : Instant.now();
+        Instant start = (from != null) ? from : end.minus(defaultWindow(granularity));
+        String error = validate(start, end, page, size);
+        if (error != null) {
+            return ResponseEntity.badRequest().body("Error: " + error);
+        }
+        return ResponseEntity.ok(endpointCallService.getCallStatsBuckets(granularity, start, end, userId, api, page, size));
+    }
+
+    @Operation(summary = "Get Top Users",
+            description = "Returns the users with the most calls in [from, to), optionally to one API. " +
+                    "With byApi=true, ranks (user, API) pairs instead.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved the ranking"),
+            @ApiResponse(responseCode = "400", description = "Invalid time window or limit")
+    })
+    @GetMapping("/call-stats/top")
+    public ResponseEntity<?> getTopCallers(
+            @RequestParam(defaultValue = "DAY") CallStatsGranularity granularity,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(required = false) Api api,
+            @RequestParam(defaultValue = "false") boolean byApi,
+            @RequestParam(defaultValue = "10") int limit) {
+        Instant end = (to != null) ? to : Instant.now();
+        Instant start = (from != null) ? from : end.minus(defaultWindow(granularity));
+        String error = validate(start, end, 0, limit);
+        if (error != null) {
+            return ResponseEntity.badRequest().body("Error: " + error);
+        }
+        return ResponseEntity.ok(byApi
+                ? endpointCallService.getTopUserEndpoints(granularity, start, end, api, limit)
+                : endpointCallService.getTopUsers(granularity, start, end, api, limit));
+    }
+
+    private Duration defaultWindow(CallStatsGranularity granularity) {
+        switch (granularity) {
+            case MINUTE:
+                return Duration.ofHours(1);
+            case HOUR:
+                return Duration.ofDays(1);
+            default:
+                return Duration.ofDays(30);
+        }
+    }
+
+    private String validate(Instant from, Instant to, int page, int size) {
+        if (!from.isBefore(to)) {
+            return "from must be before to";
+        }
+        if (page < 0 || size < 1 || size > callStatsMaxPageSize) {
+            return "page must be >= 0 and size between 1 and " + callStatsMaxPageSize;
+        }
+        return null;
+    }
+
+    @Operation(summary = "Reload Ontology Mappings",
+            description = "Re-reads the GraphQL ontology mapping files, replaces the in-memory index and republishes them to Blazegraph.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Ontology mappings reloaded"),
+            @ApiResponse(responseCode = "500", description = "A mapping file is missing or could not be read or parsed, the previous mappings are kept")
+    })
+    @PostMapping("/ontology/reload")
+    public ResponseEntity<String> reloadOntologyMappings() {
+        try {
+            int concepts = ontologyMappingService.reload();
+            return ResponseEntity.ok("Reloaded " + concepts + " ontology concepts");
+        } catch (Exception e) {
+            log.error("Ontology reload failed: {}", e.getMessage());
+            return ResponseEntity.internalServerError().body("Error: could not reload ontology mappings: " + e.getMessage());
+        }
+    }
+
+    @Operation(summary = "Migrate History To Named Graphs",
+            description = "One-off migration that moves user history records from the default graph into one named graph per user. Safe to run again.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "History migrated"),
+            @ApiResponse(responseCode = "500", description = "Migration failed, users migrated so far keep their named graph")
+    })
+    @PostMapping("/history/migrate-named-graphs")
+    public ResponseEntity<String> migrateHistoryToNamedGraphs() {
+        try {
+            int users = userHistoryService.migrateToNamedGraphs();
+            return ResponseEntity.ok("Migrated the history of " + users + " users to named graphs");
+        } catch (Exception e) {
+            log.error("History migration failed: {}", e.getMessage());
+            return ResponseEntity.internalServerError().body("Error: could not migrate history: " + e.getMessage());
+        }
+    }
+
+    @Operation(summary = "Delete User History", description = "Deletes all history records of a user.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "History deleted")
+    })
+    @DeleteMapping("/users/{userId}/history")
+    public ResponseEntity<String> deleteUserHistory(@PathVariable String userId) {
+        userHistoryService.deleteHistoryForUser(userId);
+        return ResponseEntity.ok("Deleted the history of user " + userId);
+    }
 }
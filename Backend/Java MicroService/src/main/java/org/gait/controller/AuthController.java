@@ -14,9 +14,14 @@ import org.gait.dto.LoginRequest;
 import org.gait.dto.RegisterRequest;
 import org.gait.dto.RoleName;
 import org.gait.security.JwtUtils;
+import org.gait.security.PasswordHashingBusyException;
+import org.gait.security.UserDetailsImpl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 
@@ -42,16 +47,17 @@ public class AuthController {
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successfully authenticated, JWT token returned"),
             @ApiResponse(responseCode = "401", description = "Unauthorized, authentication failed"),
+            @ApiResponse(responseCode = "503", description = "Too many concurrent logins, retry later"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
     @PostMapping("/login")
     public ResponseEntity<String> login(@RequestBody LoginRequest loginRequest) {
         // Attempt authentication
-        authenticationManager.authenticate(
+        Authentication authentication = authenticationManager.authenticate(
                 new UsernamePasswordAuthenticationToken(loginRequest.getEmail(), loginRequest.getPassword())
         );
         // If success, generate token
-        String token = jwtUtils.generateToken(loginRequest.getEmail());
+        String token = jwtUtils.generateToken((UserDetailsImpl) authentication.getPrincipal());
         log.info("User {} logged in. JWT generated", loginRequest.getEmail());
         return ResponseEntity.ok(token);
     }
@@ -63,6 +69,7 @@ public class AuthController {
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "New CLIENT user registered successfully"),
             @ApiResponse(responseCode = "400", description = "Bad Request: Email already in use or CLIENT role not found"),
+            @ApiResponse(responseCode = "503", description = "Too many concurrent registrations, retry later"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
     @PostMapping("/register/client")
@@ -94,4 +101,15 @@ public class AuthController {
         // 5) Return a success message
         return ResponseEntity.ok("New CLIENT user registered successfully!");
     }
+
+    /**
+     * Password hashing pool is full: tell the client to retry instead of queueing without bound.
+     */
+    @ExceptionHandler(PasswordHashingBusyException.class)
+    public ResponseEntity<String> handlePasswordHashingBusy(PasswordHashingBusyException e) {
+        log.warn("Rejected authentication request: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("Error: Too many login or registration requests, please retry shortly.");
+    }
 }
@@ -4,16 +4,32 @@ import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.gait.database.entity.UserEntity;
 import org.gait.database.service.UserService;
+import org.gait.dto.BatchPromptRequest;
+import org.gait.dto.CacheStatus;
 import org.gait.service.ClientService;
+import org.gait.service.RateLimitExceededException;
+import org.gait.service.RateLimitService;
 import org.gait.service.UserHistoryService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping("/client")
@@ -25,30 +41,194 @@ public class ClientController {
     private final ClientService clientService;
     private final UserService userService;
     private final UserHistoryService userHistoryService;
+    private final ObjectMapper objectMapper;
+    private final RateLimitService rateLimitService;
+
+    @Value("${client.batch.max-prompts:100}")
+    private int batchMaxPrompts;
+
+    /**
+     * Cache misses are copied from the upstream API to the response as they arrive instead of being buffered.
+     */
+    @Value("${graphql.streaming.enabled:false}")
+    private boolean streamingEnabled;
+
+    public static final String CACHE_STATUS_HEADER = "X-Cache-Status";
+    public static final String RATE_LIMIT_LIMIT_HEADER = "X-RateLimit-Limit";
+    public static final String RATE_LIMIT_REMAINING_HEADER = "X-RateLimit-Remaining";
+    public static final String RATE_LIMIT_RESET_HEADER = "X-RateLimit-Reset";
 
     @Operation(summary = "Process Client Request",
-            description = "Process a client prompt and return the GraphQL API result. Also records the user's history.")
+            description = "Process a client prompt and return the GraphQL API result. Also records the user's history. " +
+                    "The X-Cache-Status header tells whether the result was a fresh cache HIT, a STALE cache entry " +
+                    "being refreshed in the background, or a MISS.")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successfully processed the request and returned GraphQL result"),
             @ApiResponse(responseCode = "401", description = "Unauthorized"),
+            @ApiResponse(responseCode = "429", description = "Rate limit exceeded, see Retry-After"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
     @PostMapping("/use-api")
-    public String processClientRequest(@RequestBody String prompt, Authentication authentication) {
+    public ResponseEntity<?> processClientRequest(@RequestBody String prompt, Authentication authentication) {
         UserEntity user = userService.getUserEntity(authentication);
         log.info("Client user={} with prompt='{}'", user.getEmail(), prompt);
 
+        // Charge the request against the user's quota; a cache miss is charged again once its API is known.
+        RateLimitService.Quota quota = rateLimitService.consumeRequest(user);
+
+        if (streamingEnabled) {
+            return streamClientRequest(prompt, user, quota);
+        }
+
         // Process the prompt and obtain the GraphQL response.
-        String graphQLResponse = clientService.handleClientPrompt(prompt, user);
+        ClientService.PromptResult result = clientService.handleClientPrompt(prompt, user);
 
         // Increment the call count.
-        userHistoryService.saveUserHistory(String.valueOf(user.getId()), prompt, graphQLResponse);
+        userHistoryService.saveUserHistory(String.valueOf(user.getId()), prompt, result.graphQLResult);
 
         // Return the GraphQL result to the caller.
-        return graphQLResponse;
+        return ResponseEntity.ok()
+                .headers(rateLimitHeaders(quota))
+                .header(CACHE_STATUS_HEADER, result.cacheStatus.name())
+                .body(result.graphQLResult);
+    }
+
+    /**
+     * Streaming mode: cached results are returned as usual, misses are written while the upstream call runs.
+     * A result too large to keep is not cached nor recorded in the user's history.
+     */
+    private ResponseEntity<?> streamClientRequest(String prompt, UserEntity user, RateLimitService.Quota quota) {
+        ClientService.PromptResult cached = clientService.findCachedPrompt(prompt);
+        if (cached != null) {
+            userHistoryService.saveUserHistory(String.valueOf(user.getId()), prompt, cached.graphQLResult);
+            return ResponseEntity.ok()
+                    .headers(rateLimitHeaders(quota))
+                    .header(CACHE_STATUS_HEADER, cached.cacheStatus.name())
+                    .body(cached.graphQLResult);
+        }
+
+        // Once streaming starts the status is committed, so the miss is charged here
+        clientService.consumeMissQuota(prompt, user);
+
+        StreamingResponseBody body = out -> {
+            String result = clientService.streamPromptMiss(prompt, user, out);
+            if (result != null) {
+                userHistoryService.saveUserHistory(String.valueOf(user.getId()), prompt, result);
+            }
+        };
+        return ResponseEntity.ok()
+                .headers(rateLimitHeaders(quota))
+                .header(CACHE_STATUS_HEADER, CacheStatus.MISS.name())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    /**
+     * Quota used up: 429 with the bucket state and when to retry.
+     */
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<String> handleRateLimitExceeded(RateLimitExceededException e) {
+        RateLimitService.Quota quota = e.getQuota();
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .headers(rateLimitHeaders(quota))
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(quota.retryAfterSeconds))
+                .body("Error: Rate limit exceeded, retry in " + quota.retryAfterSeconds + " seconds");
+    }
+
+    /**
+     * X-RateLimit-Limit / -Remaining / -Reset (seconds until the bucket is full); none when rate limiting is off.
+     */
+    private static HttpHeaders rateLimitHeaders(RateLimitService.Quota quota) {
+        HttpHeaders headers = new HttpHeaders();
+        if (quota != null) {
+            headers.set(RATE_LIMIT_LIMIT_HEADER, String.valueOf(quota.limit));
+            headers.set(RATE_LIMIT_REMAINING_HEADER, String.valueOf(quota.remaining));
+            headers.set(RATE_LIMIT_RESET_HEADER, String.valueOf(quota.resetSeconds));
+        }
+        return headers;
+    }
+
+    @Operation(summary = "Process Batch Client Request",
+            description = "Process a list of prompts in one call. Duplicate prompts are answered once, cache hits are " +
+                    "looked up together and misses run in parallel. Returns the results in input order, or with " +
+                    "stream=true one NDJSON line per distinct prompt as soon as it is ready. Records the user's history.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Results for all prompts; failed prompts carry an error"),
+            @ApiResponse(responseCode = "400", description = "No prompts, or more than the allowed batch size " +
+                    "or the user's rate limit can cover"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized"),
+            @ApiResponse(responseCode = "429", description = "Not enough quota left for the batch, see Retry-After")
+    })
+    @PostMapping("/use-api/batch")
+    public ResponseEntity<?> processClientBatchRequest(@RequestBody BatchPromptRequest request,
+                                                       @RequestParam(defaultValue = "false") boolean stream,
+                                                       Authentication authentication) {
+        List<String> prompts = request.getPrompts();
+        if (prompts == null || prompts.isEmpty() || prompts.contains(null)) {
+            return ResponseEntity.badRequest().body("Error: prompts must be a non-empty list of prompts");
+        }
+        if (prompts.size() > batchMaxPrompts) {
+            return ResponseEntity.badRequest().body("Error: at most " + batchMaxPrompts + " prompts per batch");
+        }
+        UserEntity user = userService.getUserEntity(authentication);
+        String userId = String.valueOf(user.getId());
+        log.info("Client user={} with batch of {} prompts", user.getEmail(), prompts.size());
+
+        // A batch costing more than a full bucket would be refused forever, not just until the bucket refills
+        int distinctPrompts = (int) prompts.stream().distinct().count();
+        int maxPrompts = rateLimitService.maxPromptsPerRequest(user);
+        if (distinctPrompts > maxPrompts) {
+            return ResponseEntity.badRequest().body("Error: at most " + maxPrompts + " distinct prompts per batch within your rate limit");
+        }
+
+        // Charge every distinct prompt up front; misses over the per-API quota fail individually
+        RateLimitService.Quota quota = rateLimitService.consumeRequests(user, distinctPrompts);
+
+        if (!stream) {
+            List<ClientService.BatchPromptResult> results = clientService.handleClientPrompts(prompts, user);
+            Map<String, String> history = new LinkedHashMap<>();
+            results.stream()
+                    .filter(result -> result.error == null && result.graphQLResult != null)
+                    .forEach(result -> history.put(result.prompt, result.graphQLResult));
+            userHistoryService.saveUserHistories(userId, history);
+            return ResponseEntity.ok()
+                    .headers(rateLimitHeaders(quota))
+                    .body(results);
+        }
+
+        StreamingResponseBody body = out -> {
+            Map<String, String> history = new ConcurrentHashMap<>();
+            AtomicBoolean disconnected = new AtomicBoolean();
+            clientService.handleClientPrompts(prompts, user, result -> {
+                // Once the client is gone stop writing, but keep resolving and recording the remaining prompts
+                if (!disconnected.get()) {
+                    try {
+                        byte[] line = objectMapper.writeValueAsBytes(result);
+                        synchronized (out) {
+                            out.write(line);
+                            out.write('\n');
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        if (disconnected.compareAndSet(false, true)) {
+                            log.warn("Batch stream for user={} closed early: {}", userId, e.getMessage());
+                        }
+                    }
+                }
+                if (result.error == null && result.graphQLResult != null) {
+                    history.put(result.prompt, result.graphQLResult);
+                }
+            });
+            userHistoryService.saveUserHistories(userId, history);
+        };
+        return ResponseEntity.ok()
+                .headers(rateLimitHeaders(quota))
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
     }
 
-    @Operation(summary = "Get User History", description = "Retrieve the history of API usage for the authenticated client.")
+    @Operation(summary = "Get User History", description = "Retrieve the full history of API usage for the authenticated " +
+            "client, oldest first. Prefer the paginated /client/history for large histories.")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successfully retrieved user history"),
             @ApiResponse(responseCode = "401", description = "Unauthorized"),
@@ -59,4 +239,37 @@ public class ClientController {
         UserEntity user = userService.getUserEntity(authentication);
         return userHistoryService.getHistoryForUser(user.getId().toString());
     }
+
+    @Operation(summary = "Get User History Page",
+            description = "Retrieve one page of the authenticated client's history, newest first, without the GraphQL " +
+                    "responses. Pass the returned nextCursor to get the following page; it is null on the last page.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved the history page"),
+            @ApiResponse(responseCode = "400", description = "Invalid cursor"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized")
+    })
+    @GetMapping("/history")
+    public ResponseEntity<?> getUserHistoryPage(@RequestParam(required = false) String cursor,
+                                                @RequestParam(required = false) Integer size,
+                                                Authentication authentication) {
+        UserEntity user = userService.getUserEntity(authentication);
+        try {
+            return ResponseEntity.ok(userHistoryService.getHistoryPage(user.getId().toString(), cursor, size));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Error: " + e.getMessage());
+        }
+    }
+
+    @Operation(summary = "Get History Response", description = "Retrieve the GraphQL response of one history record by its id.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved the GraphQL response"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized"),
+            @ApiResponse(responseCode = "404", description = "No such record for this user")
+    })
+    @GetMapping("/history/response")
+    public ResponseEntity<String> getUserHistoryResponse(@RequestParam String id, Authentication authentication) {
+        UserEntity user = userService.getUserEntity(authentication);
+        String response = userHistoryService.getHistoryResponse(user.getId().toString(), id);
+        return (response != null) ? ResponseEntity.ok(response) : ResponseEntity.notFound().build();
+    }
 }
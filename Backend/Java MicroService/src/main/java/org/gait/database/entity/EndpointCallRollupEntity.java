@@ -0,0 +1,47 @@
+package org.gait.database.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.gait.dto.CallStatsGranularity;
+
+import java.time.LocalDateTime;
+
+/**
+ * Calls of one user to one endpoint within a minute, hour or day bucket.
+ * Rows are only written by the batched UPSERT in EndpointCallService; JPA is used to query them.
+ */
+@Entity
+@Table(name = "endpoint_call_rollup",
+        uniqueConstraints = {
+                @UniqueConstraint(columnNames = {"granularity", "bucket_start", "user_id", "endpoint_name"})
+        })
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class EndpointCallRollupEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "granularity", nullable = false)
+    private CallStatsGranularity granularity;
+
+    /**
+     * Start of the bucket, in UTC.
+     */
+    @Column(name = "bucket_start", nullable = false)
+    private LocalDateTime bucketStart;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id", nullable = false)
+    private UserEntity user;
+
+    @Column(name = "endpoint_name", nullable = false)
+    private String endpointName;
+
+    @Column(name = "call_count", nullable = false)
+    private Long callCount;
+}
@@ -2,6 +2,7 @@ package org.gait.database.entity;
 
 import jakarta.persistence.*;
 import lombok.*;
+import org.gait.database.service.UserCacheEvictionListener;
 
 @Entity
 @Table(name = "APP_USER")
@@ -9,6 +10,7 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@EntityListeners(UserCacheEvictionListener.class)
 public class UserEntity {
 
     @Id
@@ -2,9 +2,12 @@ package org.gait.database.repository;
 
 import org.gait.database.entity.EndpointCallEntity;
 import org.gait.database.entity.UserEntity;
+import org.gait.dto.EndpointCall;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -12,4 +15,10 @@ public interface EndpointCallRepository extends JpaRepository<EndpointCallEntity
 
     // Find record by user + endpointName
     Optional<EndpointCallEntity> findByUserAndEndpointName(UserEntity user, String endpointName);
+
+    // All counters with their user's email in one query, instead of loading each user lazily
+    @Query("SELECT new org.gait.dto.EndpointCall(u.email, e.endpointName, e.callCount) " +
+            "FROM EndpointCallEntity e JOIN e.user u " +
+            "ORDER BY u.email, e.endpointName")
+    List<EndpointCall> findAllCallStats();
 }
@@ -0,0 +1,65 @@
+package org.gait.database.repository;
+
+import org.gait.database.entity.EndpointCallRollupEntity;
+import org.gait.dto.CallStatsBucket;
+import org.gait.dto.CallStatsGranularity;
+import org.gait.dto.CallStatsTotal;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface EndpointCallRollupRepository extends JpaRepository<EndpointCallRollupEntity, Long> {
+
+    // Buckets in [from, to), newest first, optionally for one user and/or endpoint
+    @Query("SELECT new org.gait.dto.CallStatsBucket(r.bucketStart, u.email, r.endpointName, r.callCount) " +
+            "FROM EndpointCallRollupEntity r JOIN r.user u " +
+            "WHERE r.granularity = :granularity AND r.bucketStart >= :from AND r.bucketStart < :to " +
+            "AND (:userId IS NULL OR u.id = :userId) " +
+            "AND (:endpointName IS NULL OR r.endpointName = :endpointName) " +
+            "ORDER BY r.bucketStart DESC, u.email, r.endpointName")
+    List<CallStatsBucket> findBuckets(@Param("granularity") CallStatsGranularity granularity,
+                                      @Param("from") LocalDateTime from,
+                                      @Param("to") LocalDateTime to,
+                                      @Param("userId") Long userId,
+                                      @Param("endpointName") String endpointName,
+                                      Pageable pageable);
+
+    // Users with the most calls in [from, to)
+    @Query("SELECT new org.gait.dto.CallStatsTotal(u.email, SUM(r.callCount)) " +
+            "FROM EndpointCallRollupEntity r JOIN r.user u " +
+            "WHERE r.granularity = :granularity AND r.bucketStart >= :from AND r.bucketStart < :to " +
+            "AND (:endpointName IS NULL OR r.endpointName = :endpointName) " +
+            "GROUP BY u.id, u.email " +
+            "ORDER BY SUM(r.callCount) DESC, u.email")
+    List<CallStatsTotal> findTopUsers(@Param("granularity") CallStatsGranularity granularity,
+                                      @Param("from") LocalDateTime from,
+                                      @Param("to") LocalDateTime to,
+                                      @Param("endpointName") String endpointName,
+                                      Pageable pageable);
+
+    // (user, endpoint) pairs with the most calls in [from, to)
+    @Query("SELECT new org.gait.dto.CallStatsTotal(u.email, r.endpointName, SUM(r.callCount)) " +
+            "FROM EndpointCallRollupEntity r JOIN r.user u " +
+            "WHERE r.granularity = :granularity AND r.bucketStart >= :from AND r.bucketStart < :to " +
+            "AND (:endpointName IS NULL OR r.endpointName = :endpointName) " +
+            "GROUP BY u.id, u.email, r.endpointName " +
+            "ORDER BY SUM(r.callCount) DESC, u.email, r.endpointName")
+    List<CallStatsTotal> findTopUserEndpoints(@Param("granularity") CallStatsGranularity granularity,
+                                              @Param("from") LocalDateTime from,
+                                              @Param("to") LocalDateTime to,
+                                              @Param("endpointName") String endpointName,
+                                              Pageable pageable);
+
+    // Retention: drop buckets of one granularity that start before the cutoff
+    @Modifying
+    @Query("DELETE FROM EndpointCallRollupEntity r WHERE r.granularity = :granularity AND r.bucketStart < :cutoff")
+    int deleteBucketsBefore(@Param("granularity") CallStatsGranularity granularity,
+                            @Param("cutoff") LocalDateTime cutoff);
+}
@@ -1,59 +1,212 @@
 package org.gait.database.service;
 
 import lombok.RequiredArgsConstructor;
-import org.gait.database.entity.EndpointCallEntity;
 import org.gait.database.entity.UserEntity;
 import org.gait.database.repository.EndpointCallRepository;
+import org.gait.database.repository.EndpointCallRollupRepository;
 import org.gait.database.repository.UserRepository;
 import org.gait.dto.Api;
+import org.gait.dto.CallStatsBucket;
+import org.gait.dto.CallStatsGranularity;
+import org.gait.dto.CallStatsTotal;
 import org.gait.dto.EndpointCall;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counts API calls per (user, endpoint). Requests only bump an in-memory {@link LongAdder};
+ * a scheduler adds the accumulated counts to endpoint_call with one batched UPSERT, so concurrent
+ * requests neither lose increments nor race on the (user_id, endpoint_name) unique constraint.
+ * Counts not flushed yet are written on shutdown.
+ *
+ * The same flush adds the counts to the minute, hour and day buckets of endpoint_call_rollup
+ * (bucketed by flush time, so within one flush interval), which backs the time-window statistics.
+ */
 @Service
 @RequiredArgsConstructor
 public class EndpointCallService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointCallService.class);
+
+    private static final String UPSERT_SQL =
+            "INSERT INTO endpoint_call (user_id, endpoint_name, call_count) VALUES (?, ?, ?) " +
+            "ON CONFLICT (user_id, endpoint_name) " +
+            "DO UPDATE SET call_count = endpoint_call.call_count + EXCLUDED.call_count";
+
+    private static final String ROLLUP_UPSERT_SQL =
+            "INSERT INTO endpoint_call_rollup (granularity, bucket_start, user_id, endpoint_name, call_count) " +
+            "VALUES (?, date_trunc(?, now() AT TIME ZONE 'UTC'), ?, ?, ?) " +
+            "ON CONFLICT (granularity, bucket_start, user_id, endpoint_name) " +
+            "DO UPDATE SET call_count = endpoint_call_rollup.call_count + EXCLUDED.call_count";
+
     private final UserRepository userRepository;
     private final EndpointCallRepository endpointCallRepository;
+    private final EndpointCallRollupRepository endpointCallRollupRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${call-stats.rollup.minute-retention-hours:48}")
+    private long minuteRetentionHours;
+
+    @Value("${call-stats.rollup.hour-retention-days:90}")
+    private long hourRetentionDays;
 
     /**
-     * Optionally increment a call counter using your EndpointCall entity.
-     * This can go in a service, but for brevity, we'll do it here.
+     * Calls counted since the last flush. Entries are reset rather than removed, so a request
+     * never increments a counter the flush has already dropped.
      */
+    private final Map<CounterKey, LongAdder> pendingCalls = new ConcurrentHashMap<>();
+
     public void incrementCallCount(UserEntity user, Api api) {
-        String endpointName = api.toString();
-        var endpointCallOpt = endpointCallRepository.findByUserAndEndpointName(user, endpointName);
-
-        EndpointCallEntity endpointCall = endpointCallOpt.orElseGet(() -> {
-            // create a new record for (user, api)
-            EndpointCallEntity newCall = EndpointCallEntity.builder()
-                    .user(user)
-                    .endpointName(endpointName)
-                    .callCount(0L)
-                    .build();
-            return endpointCallRepository.save(newCall);
+        counter(user, api).increment();
+    }
+
+    /**
+     * Adds several calls for one user at once, e.g. for a batch request.
+     */
+    public void incrementCallCounts(UserEntity user, Map<Api, Long> callsByApi) {
+        callsByApi.forEach((api, calls) -> counter(user, api).add(calls));
+    }
+
+    private LongAdder counter(UserEntity user, Api api) {
+        return pendingCalls.computeIfAbsent(new CounterKey(user.getId(), api.toString()), key -> new LongAdder());
+    }
+
+    /**
+     * Writes the counts accumulated since the last flush with one batched UPSERT per table, in one transaction.
+     * If the write fails, the counts are added back and retried on the next flush.
+     */
+    @Scheduled(fixedDelayString = "${call-counts.flush-interval-ms:5000}")
+    public synchronized void flush() {
+        List<CounterKey> keys = new ArrayList<>();
+        List<Object[]> rows = new ArrayList<>();
+        List<Object[]> rollupRows = new ArrayList<>();
+        pendingCalls.forEach((key, adder) -> {
+            long calls = adder.sumThenReset();
+            if (calls > 0) {
+                keys.add(key);
+                rows.add(new Object[]{key.userId, key.endpointName, calls});
+                for (CallStatsGranularity granularity : CallStatsGranularity.values()) {
+                    rollupRows.add(new Object[]{granularity.name(), granularity.name().toLowerCase(),
+                            key.userId, key.endpointName, calls});
+                }
+            }
         });
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.batchUpdate(UPSERT_SQL, rows);
+                jdbcTemplate.batchUpdate(ROLLUP_UPSERT_SQL, rollupRows);
+            });
+            LOG.debug("Flushed {} call counters", rows.size());
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush {} call counters, retrying later: {}", rows.size(), e.getMessage());
+            for (int i = 0; i < keys.size(); i++) {
+                pendingCalls.get(keys.get(i)).add((Long) rows.get(i)[2]);
+            }
+        }
+    }
 
-        // Increment
-        endpointCall.setCallCount(endpointCall.getCallCount() + 1);
-        endpointCallRepository.save(endpointCall);
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
     }
 
     public List<EndpointCall> getCallStats() {
+        // Include the calls counted since the last scheduled flush
+        flush();
+        return endpointCallRepository.findAllCallStats();
+    }
 
-        List<EndpointCallEntity> endpointCallEntityList = endpointCallRepository.findAll();
+    /**
+     * Per-bucket call counts in [from, to), newest first, optionally for one user and/or API.
+     */
+    public List<CallStatsBucket> getCallStatsBuckets(CallStatsGranularity granularity, Instant from, Instant to,
+                                                     Long userId, Api api, int page, int size) {
+        flush();
+        return endpointCallRollupRepository.findBuckets(granularity, utc(from), utc(to), userId,
+                (api != null) ? api.toString() : null, PageRequest.of(page, size));
+    }
+
+    /**
+     * The {@code limit} users with the most calls in [from, to), optionally to one API.
+     */
+    public List<CallStatsTotal> getTopUsers(CallStatsGranularity granularity, Instant from, Instant to,
+                                            Api api, int limit) {
+        flush();
+        return endpointCallRollupRepository.findTopUsers(granularity, utc(from), utc(to),
+                (api != null) ? api.toString() : null, PageRequest.of(0, limit));
+    }
+
+    /**
+     * The {@code limit} (user, API) pairs with the most calls in [from, to), optionally to one API.
+     */
+    public List<CallStatsTotal> getTopUserEndpoints(CallStatsGranularity granularity, Instant from, Instant to,
+                                                    Api api, int limit) {
+        flush();
+        return endpointCallRollupRepository.findTopUserEndpoints(granularity, utc(from), utc(to),
+                (api != null) ? api.toString() : null, PageRequest.of(0, limit));
+    }
+
+    /**
+     * Drops minute and hour buckets past their retention; day buckets are kept.
+     */
+    @Scheduled(fixedDelayString = "${call-stats.rollup.purge-interval-ms:3600000}",
+            initialDelayString = "${call-stats.rollup.purge-interval-ms:3600000}")
+    @Transactional
+    public void purgeExpiredBuckets() {
+        LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+        int minutes = endpointCallRollupRepository.deleteBucketsBefore(CallStatsGranularity.MINUTE,
+                now.minusHours(minuteRetentionHours));
+        int hours = endpointCallRollupRepository.deleteBucketsBefore(CallStatsGranularity.HOUR,
+                now.minusDays(hourRetentionDays));
+        LOG.debug("Purged {} minute and {} hour call stats buckets", minutes, hours);
+    }
 
-        // Map each EndpointCallEntity to an EndpointCallDto
-        return endpointCallEntityList
-                .stream()
-                .map(entity ->
-                        new EndpointCall(
-                                entity.getUser().getEmail(),
-                                entity.getEndpointName(),
-                                entity.getCallCount()))
-                .toList();
+    private static LocalDateTime utc(Instant instant) {
+        return LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
     }
 
+    private static final class CounterKey {
+        final Long userId;
+        final String endpointName;
+
+        CounterKey(Long userId, String endpointName) {
+            this.userId = userId;
+            this.endpointName = endpointName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CounterKey)) return false;
+            CounterKey other = (CounterKey) o;
+            return userId.equals(other.userId) && endpointName.equals(other.endpointName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, endpointName);
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package org.gait.database.service;
+
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.gait.database.entity.UserEntity;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps {@link UserService}'s user cache in line with the database: a user that is updated or
+ * removed is evicted, so the next request loads it again. Created by Hibernate through Spring's
+ * bean container; the service is looked up lazily because the listener is built with the
+ * EntityManagerFactory the service depends on.
+ *
+ * The callbacks fire at flush, before the transaction commits, so the eviction is deferred until
+ * after the commit; evicting earlier would let a concurrent request cache the old row again.
+ */
+public class UserCacheEvictionListener {
+
+    private final ObjectProvider<UserService> userService;
+
+    public UserCacheEvictionListener(ObjectProvider<UserService> userService) {
+        this.userService = userService;
+    }
+
+    @PostUpdate
+    @PostRemove
+    public void evict(UserEntity user) {
+        Long userId = user.getId();
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evictNow(userId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                evictNow(userId);
+            }
+        });
+    }
+
+    private void evictNow(Long userId) {
+        userService.ifAvailable(service -> service.evictUser(userId));
+    }
+}
@@ -1,24 +1,95 @@
 package org.gait.database.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.RequiredArgsConstructor;
+import org.gait.database.entity.Role;
 import org.gait.database.entity.UserEntity;
 import org.gait.database.repository.UserRepository;
+import org.gait.dto.RoleName;
 import org.gait.security.UserDetailsImpl;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+
 @Service
 @RequiredArgsConstructor
 public class UserService {
 
     private final UserRepository userRepository;
 
+    @Value("${user.cache.max-size:10000}")
+    private long userCacheMaxSize;
+
+    @Value("${user.cache.expiration.minutes:10}")
+    private long userCacheExpirationMinutes;
+
+    /**
+     * Users by id, so authenticated requests don't load their user from Postgres every time.
+     * Entries are evicted by {@link UserCacheEvictionListener} when a user is updated or removed.
+     * Holds immutable snapshots rather than entities, so no request can change what the next one sees.
+     */
+    private Cache<Long, CachedUser> userCache;
+
+    @PostConstruct
+    public void initUserCache() {
+        userCache = Caffeine.newBuilder()
+                .maximumSize(userCacheMaxSize)
+                .expireAfterWrite(Duration.ofMinutes(userCacheExpirationMinutes))
+                .build();
+    }
+
+    /**
+     * Returns a detached copy of the authenticated user, without the password hash; load the user from
+     * {@link UserRepository} to change and save it.
+     */
     public UserEntity getUserEntity(Authentication authentication) {
-        // 2) The 'Authentication' object has principal = our user details
+        // The 'Authentication' object has principal = our user details, built from the JWT claims
         UserDetailsImpl principal = (UserDetailsImpl) authentication.getPrincipal();
 
-        // 3) Find the user in DB (assuming the principal's email is the "username")
-        return userRepository.findByEmail(principal.getUsername())
-                .orElseThrow(() -> new RuntimeException("User not found"));
+        CachedUser user = userCache.get(principal.getId(),
+                id -> userRepository.findById(id).map(CachedUser::new).orElse(null));
+        if (user == null) {
+            throw new RuntimeException("User not found");
+        }
+        return user.toEntity();
+    }
+
+    public void evictUser(Long userId) {
+        userCache.invalidate(userId);
+    }
+
+    /**
+     * The fields requests read from a user, copied out of the entity when it is loaded.
+     */
+    private static final class CachedUser {
+        private final Long id;
+        private final String email;
+        private final String fullname;
+        private final Integer age;
+        private final Long roleId;
+        private final RoleName roleName;
+
+        CachedUser(UserEntity user) {
+            this.id = user.getId();
+            this.email = user.getEmail();
+            this.fullname = user.getFullname();
+            this.age = user.getAge();
+            this.roleId = (user.getRole() != null) ? user.getRole().getId() : null;
+            this.roleName = (user.getRole() != null) ? user.getRole().getRole() : null;
+        }
+
+        UserEntity toEntity() {
+            return UserEntity.builder()
+                    .id(id)
+                    .email(email)
+                    .fullname(fullname)
+                    .age(age)
+                    .role((roleName != null) ? new Role(roleId, roleName) : null)
+                    .build();
+        }
     }
 }
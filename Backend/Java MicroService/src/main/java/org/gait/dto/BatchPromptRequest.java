@@ -0,0 +1,10 @@
+package org.gait.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BatchPromptRequest {
+    private List<String> prompts;
+}
@@ -0,0 +1,10 @@
+package org.gait.dto;
+
+/**
+ * How a client prompt was answered, reported in the X-Cache-Status response header.
+ */
+public enum CacheStatus {
+    HIT,
+    STALE,
+    MISS
+}
@@ -0,0 +1,18 @@
+package org.gait.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Calls of one user to one endpoint within one time bucket (bucketStart is in UTC).
+ */
+@Data
+@AllArgsConstructor
+public class CallStatsBucket {
+    private LocalDateTime bucketStart;
+    private String userEmail;
+    private String endpointName;
+    private Long callCount;
+}
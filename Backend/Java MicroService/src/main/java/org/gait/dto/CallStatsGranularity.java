@@ -0,0 +1,10 @@
+package org.gait.dto;
+
+/**
+ * Bucket size of the call statistics rollup.
+ */
+public enum CallStatsGranularity {
+    MINUTE,
+    HOUR,
+    DAY
+}
@@ -0,0 +1,19 @@
+package org.gait.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Calls summed over a time window, per user or per user and endpoint (endpointName is null for per-user totals).
+ */
+@Data
+@AllArgsConstructor
+public class CallStatsTotal {
+    private String userEmail;
+    private String endpointName;
+    private Long callCount;
+
+    public CallStatsTotal(String userEmail, Long callCount) {
+        this(userEmail, null, callCount);
+    }
+}
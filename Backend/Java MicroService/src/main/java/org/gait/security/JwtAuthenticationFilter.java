@@ -1,5 +1,6 @@
 package org.gait.security;
 
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -7,6 +8,7 @@ import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
@@ -30,10 +32,10 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         try {
             String token = parseToken(request);
 
-            if (token != null && jwtUtils.validateToken(token)) {
-                String email = jwtUtils.getUsernameFromToken(token);
+            if (token != null) {
+                Claims claims = jwtUtils.parseAndVerify(token);
 
-                var userDetails = userDetailsService.loadUserByUsername(email);
+                var userDetails = principalFromClaims(claims);
                 var authToken = new UsernamePasswordAuthenticationToken(
                         userDetails,
                         null,
@@ -53,6 +55,19 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         filterChain.doFilter(request, response);
     }
 
+    /**
+     * Builds the principal from the token's claims. Only tokens issued before the id and role were
+     * added to them fall back to loading the user from the database.
+     */
+    private UserDetails principalFromClaims(Claims claims) {
+        Number userId = claims.get(JwtUtils.USER_ID_CLAIM, Number.class);
+        String role = claims.get(JwtUtils.ROLE_CLAIM, String.class);
+        if (userId == null || role == null) {
+            return userDetailsService.loadUserByUsername(claims.getSubject());
+        }
+        return UserDetailsImpl.fromToken(userId.longValue(), claims.getSubject(), role);
+    }
+
     /**
      * Extract "Bearer <token>" from the Authorization header.
      */
@@ -1,13 +1,19 @@
 package org.gait.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
 import lombok.RequiredArgsConstructor;
+import org.gait.util.Hashing;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.security.Key;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simplified JWT utility class for generating & validating tokens.
@@ -22,31 +28,73 @@ public class JwtUtils {
     @Value("${jwt.expiration-ms}")
     private Long jwtExpirationMs; // e.g. 86400000 (1 day)
 
-    private Key getSigningKey() {
-        return Keys.hmacShaKeyFor(jwtSecret.getBytes());
+    @Value("${jwt.verified-cache.max-size:10000}")
+    private long verifiedCacheMaxSize;
+
+    public static final String USER_ID_CLAIM = "uid";
+    public static final String ROLE_CLAIM = "role";
+
+    private Key signingKey;
+    private JwtParser parser;
+
+    /**
+     * Claims of tokens already verified, by SHA-256 of the token. Each entry expires with its token,
+     * so a bearer token presented again skips the signature check and claim parsing.
+     */
+    private Cache<String, Claims> verifiedTokens;
+
+    @PostConstruct
+    public void init() {
+        // The key and parser are immutable and thread-safe, so they are built once
+        signingKey = Keys.hmacShaKeyFor(jwtSecret.getBytes());
+        parser = Jwts.parserBuilder().setSigningKey(signingKey).build();
+        verifiedTokens = Caffeine.newBuilder()
+                .maximumSize(verifiedCacheMaxSize)
+                .expireAfter(new UntilTokenExpiry())
+                .build();
     }
 
     /**
-     * Generate JWT from a user email.
+     * Generate JWT for an authenticated user. Besides the email (subject) it carries the user id and
+     * authority, so requests can be authenticated from the token alone.
      */
-    public String generateToken(String email) {
+    public String generateToken(UserDetailsImpl user) {
         Date now = new Date();
         Date expiry = new Date(now.getTime() + jwtExpirationMs);
 
         return Jwts.builder()
-                .setSubject(email)
+                .setSubject(user.getEmail())
+                .claim(USER_ID_CLAIM, user.getId())
+                .claim(ROLE_CLAIM, user.getAuthority().getAuthority())
                 .setIssuedAt(now)
                 .setExpiration(expiry)
-                .signWith(getSigningKey(), SignatureAlgorithm.HS256)
+                .signWith(signingKey, SignatureAlgorithm.HS256)
                 .compact();
     }
 
+    /**
+     * Verify the token's signature and expiration and return its claims, from the verified-token cache
+     * when the same token was seen before. Throws {@link JwtException} if it is malformed, expired, etc.
+     */
+    public Claims parseAndVerify(String token) {
+        String digest = Hashing.sha256Hex(token);
+        Claims claims = verifiedTokens.getIfPresent(digest);
+        if (claims == null) {
+            claims = parser.parseClaimsJws(token).getBody();
+            if (claims.getExpiration() != null) {
+                // Tokens without an expiry are verified every time rather than cached forever
+                verifiedTokens.put(digest, claims);
+            }
+        }
+        return claims;
+    }
+
     /**
      * Validate the token’s signature and expiration.
      */
     public boolean validateToken(String token) {
         try {
-            Jwts.parserBuilder().setSigningKey(getSigningKey()).build().parseClaimsJws(token);
+            parseAndVerify(token);
             return true;
         } catch (JwtException e) {
             // Malformed, expired, etc.
@@ -58,11 +106,28 @@ public class JwtUtils {
      * Extract email (subject) from JWT.
      */
     public String getUsernameFromToken(String token) {
-        return Jwts.parserBuilder()
-                .setSigningKey(getSigningKey())
-                .build()
-                .parseClaimsJws(token)
-                .getBody()
-                .getSubject();
+        return parseAndVerify(token).getSubject();
+    }
+
+    /**
+     * Keeps a verified token's claims until the token's own {@code exp}.
+     */
+    private static class UntilTokenExpiry implements Expiry<String, Claims> {
+
+        @Override
+        public long expireAfterCreate(String digest, Claims claims, long currentTime) {
+            long remainingMs = claims.getExpiration().getTime() - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(remainingMs, 0));
+        }
+
+        @Override
+        public long expireAfterUpdate(String digest, Claims claims, long currentTime, long currentDuration) {
+            return expireAfterCreate(digest, claims, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String digest, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
     }
 }
@@ -0,0 +1,11 @@
+package org.gait.security;
+
+/**
+ * Thrown when the password hashing pool and its queue are full, or a hash is not done in time; answered with 503 so the client retries later.
+ */
+public class PasswordHashingBusyException extends RuntimeException {
+
+    public PasswordHashingBusyException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
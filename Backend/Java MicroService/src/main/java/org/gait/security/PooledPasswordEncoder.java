@@ -0,0 +1,88 @@
+package org.gait.security;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the hashing of a delegate encoder (BCrypt) on a dedicated bounded pool instead of the request
+ * thread, so a burst of logins or registrations cannot use every request thread for CPU-heavy work.
+ * When the pool and its queue are full the call fails at once with {@link PasswordHashingBusyException};
+ * so does a call whose hash is not done within {@code timeoutMs}, queueing included.
+ */
+public class PooledPasswordEncoder implements PasswordEncoder {
+
+    private static final String HASH_TIMER = "auth.password.hash";
+
+    private final PasswordEncoder delegate;
+    private final ThreadPoolTaskExecutor executor;
+    private final MeterRegistry meterRegistry;
+    private final long timeoutMs;
+
+    public PooledPasswordEncoder(PasswordEncoder delegate, ThreadPoolTaskExecutor executor, MeterRegistry meterRegistry,
+                                 long timeoutMs) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.meterRegistry = meterRegistry;
+        this.timeoutMs = timeoutMs;
+        meterRegistry.gauge("auth.password.queue.depth", executor, ThreadPoolTaskExecutor::getQueueSize);
+        meterRegistry.gauge("auth.password.active", executor, ThreadPoolTaskExecutor::getActiveCount);
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return run("encode", () -> delegate.encode(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return run("matches", () -> delegate.matches(rawPassword, encodedPassword));
+    }
+
+    /**
+     * Cheap check of the stored hash's cost against the configured one, run on the caller's thread.
+     * A true result makes the authentication provider re-hash the password after a successful login.
+     */
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+    private <T> T run(String operation, Callable<T> hashing) {
+        Timer timer = Timer.builder(HASH_TIMER)
+                .description("Time spent hashing passwords, excluding time queued")
+                .tag("operation", operation)
+                .register(meterRegistry);
+
+        Future<T> result;
+        try {
+            result = executor.submit(() -> timer.recordCallable(hashing));
+        } catch (TaskRejectedException e) {
+            meterRegistry.counter("auth.password.rejected", "operation", operation).increment();
+            throw new PasswordHashingBusyException("Password hashing pool is saturated", e);
+        }
+
+        try {
+            return result.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            meterRegistry.counter("auth.password.timed-out", "operation", operation).increment();
+            throw new PasswordHashingBusyException("Password hashing did not finish within " + timeoutMs + " ms", e);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing password", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+}
@@ -37,6 +37,13 @@ public class UserDetailsImpl implements UserDetails {
         );
     }
 
+    /**
+     * Static factory: build a password-less UserDetailsImpl from verified JWT claims, without loading the user.
+     */
+    public static UserDetailsImpl fromToken(Long id, String email, String authority) {
+        return new UserDetailsImpl(id, email, null, new SimpleGrantedAuthority(authority));
+    }
+
     @Override
     public String getUsername() {
         // "username" in Spring Security terms → we use the email field
@@ -4,13 +4,14 @@ import lombok.RequiredArgsConstructor;
 import org.gait.database.entity.UserEntity;
 import org.gait.database.repository.UserRepository;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
 @Service
 @RequiredArgsConstructor
-public class UserDetailsServiceImpl implements UserDetailsService {
+public class UserDetailsServiceImpl implements UserDetailsService, UserDetailsPasswordService {
 
     private final UserRepository userRepository;
 
@@ -21,4 +22,15 @@ public class UserDetailsServiceImpl implements UserDetailsService {
 
         return UserDetailsImpl.build(userEntity);
     }
+
+    /**
+     * Stores a password re-hashed on login, e.g. after the BCrypt cost was raised.
+     */
+    @Override
+    public UserDetails updatePassword(UserDetails user, String newPassword) {
+        UserEntity userEntity = userRepository.findByEmail(user.getUsername())
+                .orElseThrow(() -> new UsernameNotFoundException("User not found with email: " + user.getUsername()));
+        userEntity.setPassword(newPassword);
+        return UserDetailsImpl.build(userRepository.save(userEntity));
+    }
 }
@@ -1,31 +1,37 @@
 package org.gait.service;
 
-import org.apache.jena.query.*;
-import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
-import org.apache.jena.sparql.exec.http.QuerySendMode;
-import org.apache.jena.update.UpdateExecutionFactory;
-import org.apache.jena.update.UpdateFactory;
-import org.apache.jena.update.UpdateProcessor;
-import org.apache.jena.update.UpdateRequest;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import lombok.RequiredArgsConstructor;
+import org.apache.jena.query.QuerySolution;
+import org.gait.util.Hashing;
 import org.gait.vocabulary.CacheOntology;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
 
  import org.slf4j.Logger;
  import org.slf4j.LoggerFactory;
 
 @Service
+@RequiredArgsConstructor
 public class BlazegraphCacheService {
 
     private static final Logger LOG = LoggerFactory.getLogger(BlazegraphCacheService.class);
 
-    @Value("${blazegraph.endpoint:http://localhost:9999/blazegraph/namespace/kb/sparql}")
-    private String blazegraphEndpoint;
+    private final BlazegraphClient blazegraphClient;
+    private final BlazegraphWriteBehind writeBehind;
 
     /**
      * The cache expiration in minutes, read from application.properties or environment var.
@@ -33,6 +39,42 @@ public class BlazegraphCacheService {
     @Value("${cache.expiration.minutes:1}")
     private long cacheExpirationMinutes;
 
+    /**
+     * When enabled, expired entries are still served (flagged as stale) for a grace window
+     * while the caller refreshes them in the background.
+     */
+    @Value("${cache.stale-while-revalidate.enabled:false}")
+    private boolean staleWhileRevalidate;
+
+    @Value("${cache.stale-while-revalidate.grace.minutes:5}")
+    private long staleGraceMinutes;
+
+    /**
+     * Maximum number of entries kept in the in-process (L1) tier.
+     */
+    @Value("${cache.l1.max-size:1000}")
+    private long l1MaxSize;
+
+    /**
+     * Store results gzip-compressed and base64-encoded, with their hash and size, instead of as escaped JSON.
+     * Entries written before are still read as plain text.
+     */
+    @Value("${cache.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    /**
+     * Results smaller than this are stored as plain text, gzip does not pay off for them.
+     */
+    @Value("${cache.compression.min-bytes:512}")
+    private int compressionMinBytes;
+
+    /**
+     * In-process (L1) tier in front of Blazegraph (L2), keyed by prompt or query URI.
+     * Entries expire once they reach the configured age (plus the stale grace window, if enabled),
+     * counted from their original creation time.
+     */
+    private Cache<String, CachedEntry> l1Cache;
+
     /**
      * Prefixes for our cache ontology and XSD in SPARQL queries.
      */
@@ -40,6 +82,29 @@ public class BlazegraphCacheService {
             "PREFIX cache: <" + CacheOntology.NS + "> " +
                     "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ";
 
+    @PostConstruct
+    public void initL1Cache() {
+        l1Cache = Caffeine.newBuilder()
+                .maximumSize(l1MaxSize)
+                .expireAfter(new Expiry<String, CachedEntry>() {
+                    @Override
+                    public long expireAfterCreate(String uri, CachedEntry entry, long currentTime) {
+                        return remainingLifetime(entry).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String uri, CachedEntry entry, long currentTime, long currentDuration) {
+                        return remainingLifetime(entry).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String uri, CachedEntry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
     /**
      * Generates a unique URI for a given prompt.
      */
@@ -47,6 +112,15 @@ public class BlazegraphCacheService {
         return "urn:prompt:" + URLEncoder.encode(prompt, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Generates a unique URI for a prepared GraphQL query,
+     * so that different wordings of the same request share one cached result.
+     * The key is hashed because it embeds the whole query shape.
+     */
+    public String generateQueryURI(String queryKey) {
+        return "urn:query:" + Hashing.sha256Hex(queryKey);
+    }
+
     /**
      * Escapes double quotes and removes newlines from input to avoid breaking queries.
      */
@@ -62,91 +136,281 @@ public class BlazegraphCacheService {
      * Saves a cache entry with the user prompt, the final GraphQL result, and the creation timestamp.
      */
     public void saveCacheEntry(String prompt, String graphQLResult) {
-        String promptURI = generatePromptURI(prompt);
-        String safePrompt = sanitize(prompt);
-        String safeGraphQLResult = sanitize(graphQLResult);
-        String timestamp = Instant.now().toString();  // ISO-8601 format
+        saveCacheEntry(prompt, graphQLResult, Instant.now().toString());
+    }
+
+    /**
+     * Saves a prompt cache entry that reuses a result created at the given time,
+     * e.g. one found in the query-level cache, so it does not outlive that result.
+     */
+    public void saveCacheEntry(String prompt, String graphQLResult, String createdAt) {
+        saveEntry(generatePromptURI(prompt), CacheOntology.originalPrompt, prompt, graphQLResult, createdAt);
+    }
 
+    /**
+     * Retrieves the cached entry for the given prompt, checking the in-process tier before Blazegraph.
+     * If the entry is older than the configured expiration (cacheExpirationMinutes),
+     * null is returned and the entry is left for {@link CacheExpirySweeper}. Otherwise, we return the cached content.
+     * With stale-while-revalidate enabled, entries within the grace window are returned flagged as stale.
+     */
+    public CachedEntry fetchCacheEntry(String prompt) {
+        return fetchEntry(generatePromptURI(prompt), prompt);
+    }
+
+    /**
+     * Deletes the cached entry for the given prompt.
+     */
+    public void removeCacheEntry(String prompt) {
+        removeEntry(generatePromptURI(prompt));
+    }
+
+    /**
+     * Saves the GraphQL result for a prepared query, identified by its canonical key.
+     */
+    public CachedEntry saveQueryCacheEntry(String queryKey, String graphQLResult) {
+        return saveEntry(generateQueryURI(queryKey), CacheOntology.canonicalQuery,
+                queryKey, graphQLResult, Instant.now().toString());
+    }
+
+    /**
+     * Retrieves the cached GraphQL result for a prepared query, identified by its canonical key.
+     * Same expiration rules as {@link #fetchCacheEntry(String)}.
+     */
+    public CachedEntry fetchQueryCacheEntry(String queryKey) {
+        return fetchEntry(generateQueryURI(queryKey), queryKey);
+    }
+
+    private CachedEntry saveEntry(String subjectURI, String labelProperty, String label,
+                                  String graphQLResult, String timestamp) {
+        String safeLabel = sanitize(label);
+        String resultTriples = resultTriples(graphQLResult);
+
+        // Write L1 first so hot prompts are served from memory even if Blazegraph is slow or down
+        CachedEntry entry = new CachedEntry(label, graphQLResult, timestamp);
+        l1Cache.put(subjectURI, entry);
+
+        // Replace any previous version of the entry, expired ones are no longer deleted on read
         String updateString = PREFIXES +
+                "DELETE WHERE { <" + subjectURI + "> ?p ?o . } ; " +
                 "INSERT DATA { " +
-                "  <" + promptURI + "> a <" + CacheOntology.CachedEntry + "> ; " +
-                "    <" + CacheOntology.originalPrompt + "> \"" + safePrompt + "\" ; " +
-                "    <" + CacheOntology.hasGraphQLResult + "> \"" + safeGraphQLResult + "\" ; " +
+                "  <" + subjectURI + "> a <" + CacheOntology.CachedEntry + "> ; " +
+                "    <" + labelProperty + "> \"" + safeLabel + "\" ; " +
+                resultTriples +
                 "    <" + CacheOntology.createdAt + "> \"" + timestamp + "\"^^xsd:dateTime ." +
                 "}";
 
-        UpdateRequest updateRequest = UpdateFactory.create(updateString);
-        UpdateProcessor processor =
-                UpdateExecutionFactory.createRemoteForm(updateRequest, blazegraphEndpoint);
-        processor.execute();
+        // Written to Blazegraph in the background, L1 already serves it
+        try {
+            writeBehind.submit("cache.save", updateString);
+        } catch (Exception e) {
+            LOG.warn("Could not write cache entry for {} to Blazegraph, kept in L1 only: {}", subjectURI, e.getMessage());
+            return entry;
+        }
 
-         LOG.debug("Saved cache entry for promptURI={} at time={}", promptURI, timestamp);
+         LOG.debug("Queued cache entry for {} at time={}", subjectURI, timestamp);
+        return entry;
     }
 
     /**
-     * Retrieves the cached entry for the given prompt.
-     * If the entry is older than the configured expiration (cacheExpirationMinutes),
-     * it is deleted and null is returned. Otherwise, we return the cached content.
+     * Predicate-object pairs for the result: a plain literal for small results or with compression off,
+     * otherwise the compressed literal with its encoding, SHA-256 and uncompressed size.
      */
-    public CachedEntry fetchCacheEntry(String prompt) {
-        String promptURI = generatePromptURI(prompt);
+    private String resultTriples(String graphQLResult) {
+        String result = (graphQLResult != null) ? graphQLResult : "";
+        int size = result.getBytes(StandardCharsets.UTF_8).length;
+        if (!compressionEnabled || size < compressionMinBytes) {
+            return "    <" + CacheOntology.hasGraphQLResult + "> \"" + sanitize(result) + "\" ; ";
+        }
+        return "    <" + CacheOntology.hasGraphQLResult + "> \"" + CachedResultCodec.encode(result) + "\" ; " +
+                "    <" + CacheOntology.resultEncoding + "> \"" + CachedResultCodec.GZIP_BASE64 + "\" ; " +
+                "    <" + CacheOntology.resultSha256 + "> \"" + Hashing.sha256Hex(result) + "\" ; " +
+                "    <" + CacheOntology.resultSize + "> \"" + size + "\"^^xsd:long ; ";
+    }
+
+    /**
+     * The stored result literal, decoded if the entry carries an encoding; null if it fails its SHA-256 check.
+     */
+    private static String storedResult(String subjectURI, QuerySolution sol) {
+        String encoding = sol.contains("encoding") ? sol.getLiteral("encoding").getString() : null;
+        String sha256 = sol.contains("sha256") ? sol.getLiteral("sha256").getString() : null;
+        String result = CachedResultCodec.decode(sol.getLiteral("graphQLResult").getString(), encoding, sha256);
+        if (result == null) {
+            LOG.warn("Stored result for {} is corrupt (SHA-256 mismatch), treating it as a miss", subjectURI);
+        }
+        return result;
+    }
+
+    private CachedEntry fetchEntry(String subjectURI, String label) {
+        CachedEntry local = l1Cache.getIfPresent(subjectURI);
+        if (local != null) {
+            LOG.debug("L1 cache hit for {}", subjectURI);
+            return isStale(local) ? local.asStale() : local;
+        }
 
         String queryString = PREFIXES +
-                "SELECT ?graphQLResult ?createdAt WHERE { " +
-                "  <" + promptURI + "> a <" + CacheOntology.CachedEntry + "> ; " +
+                "SELECT ?graphQLResult ?encoding ?sha256 ?createdAt WHERE { " +
+                "  <" + subjectURI + "> a <" + CacheOntology.CachedEntry + "> ; " +
                 "    <" + CacheOntology.hasGraphQLResult + "> ?graphQLResult ; " +
                 "    <" + CacheOntology.createdAt + "> ?createdAt ." +
-                "}";
+                "  OPTIONAL { <" + subjectURI + "> <" + CacheOntology.resultEncoding + "> ?encoding . }" +
+                "  OPTIONAL { <" + subjectURI + "> <" + CacheOntology.resultSha256 + "> ?sha256 . }" +
+                "} ORDER BY DESC(?createdAt) LIMIT 1";
 
-        Query query = QueryFactory.create(queryString);
+        QuerySolution sol = blazegraphClient.select("cache.fetch", queryString,
+                results -> results.hasNext() ? results.nextSolution() : null);
+        if (sol != null) {
+            String result = storedResult(subjectURI, sol);
+            return (result != null) ? promote(subjectURI, label, result, sol.getLiteral("createdAt").getString()) : null;
+        }
+        // No results found or something else happened
+        return null;
+    }
 
-        try (QueryExecution qexec = QueryExecutionHTTP.newBuilder()
-                .endpoint(blazegraphEndpoint)
-                .query(query)
-                .sendMode(QuerySendMode.asPost)
-                .build()) {
+    /**
+     * Retrieves the cached entries for several prompts at once: L1 first, then one Blazegraph query
+     * (VALUES over the remaining prompt URIs). Prompts without a valid entry are absent from the result.
+     */
+    public Map<String, CachedEntry> fetchCacheEntries(Collection<String> prompts) {
+        Map<String, CachedEntry> found = new HashMap<>();
+        Map<String, String> promptsByURI = new LinkedHashMap<>();
+        for (String prompt : prompts) {
+            String subjectURI = generatePromptURI(prompt);
+            CachedEntry local = l1Cache.getIfPresent(subjectURI);
+            if (local != null) {
+                found.put(prompt, isStale(local) ? local.asStale() : local);
+            } else {
+                promptsByURI.put(subjectURI, prompt);
+            }
+        }
+        if (promptsByURI.isEmpty()) {
+            return found;
+        }
 
-            ResultSet results = qexec.execSelect();
-            if (results.hasNext()) {
+        String values = promptsByURI.keySet().stream()
+                .map(uri -> "<" + uri + ">")
+                .collect(Collectors.joining(" "));
+        String queryString = PREFIXES +
+                "SELECT ?entry ?graphQLResult ?encoding ?sha256 ?createdAt WHERE { " +
+                "  VALUES ?entry { " + values + " } " +
+                "  ?entry a <" + CacheOntology.CachedEntry + "> ; " +
+                "    <" + CacheOntology.hasGraphQLResult + "> ?graphQLResult ; " +
+                "    <" + CacheOntology.createdAt + "> ?createdAt ." +
+                "  OPTIONAL { ?entry <" + CacheOntology.resultEncoding + "> ?encoding . }" +
+                "  OPTIONAL { ?entry <" + CacheOntology.resultSha256 + "> ?sha256 . }" +
+                "} ORDER BY ?entry DESC(?createdAt)";
+
+        blazegraphClient.select("cache.fetch.bulk", queryString, results -> {
+            while (results.hasNext()) {
                 QuerySolution sol = results.nextSolution();
-                String graphQLResult = sol.getLiteral("graphQLResult").getString();
-                String createdAtStr = sol.getLiteral("createdAt").getString();
-                Instant createdAt = Instant.parse(createdAtStr);
-
-                // Use the actual configured expiration
-                long ageSeconds = Duration.between(createdAt, Instant.now()).toSeconds();
-                long expirationSeconds = cacheExpirationMinutes * 60;
-
-                if (ageSeconds >= expirationSeconds) {
-                    // Cache is expired, remove it and return null
-                    removeCacheEntry(prompt);
-                     LOG.debug("Cache expired for prompt={}, ageSeconds={}, expirationSeconds={}", prompt, ageSeconds, expirationSeconds);
-                    return null;
+                String subjectURI = sol.getResource("entry").getURI();
+                String prompt = promptsByURI.get(subjectURI);
+                // Newest version of each entry comes first
+                if (prompt == null || found.containsKey(prompt)) {
+                    continue;
+                }
+                String result = storedResult(subjectURI, sol);
+                CachedEntry entry = (result != null)
+                        ? promote(subjectURI, prompt, result, sol.getLiteral("createdAt").getString())
+                        : null;
+                if (entry != null) {
+                    found.put(prompt, entry);
                 }
-
-                // Still valid
-                return new CachedEntry(prompt, graphQLResult, createdAtStr);
             }
+            return null;
+        });
+        return found;
+    }
+
+    /**
+     * Turns an entry read from Blazegraph into a cache result, or null if it has expired.
+     */
+    private CachedEntry promote(String subjectURI, String label, String graphQLResult, String createdAtStr) {
+        Instant createdAt = Instant.parse(createdAtStr);
+
+        // Use the actual configured expiration (extended by the stale grace window, if enabled)
+        long ageSeconds = Duration.between(createdAt, Instant.now()).toSeconds();
+        long expirationSeconds = retention().toSeconds();
+
+        if (ageSeconds >= expirationSeconds) {
+            // Cache is expired: treat as a miss, the expiry sweeper deletes it
+             LOG.debug("Cache expired for {}, ageSeconds={}, expirationSeconds={}", subjectURI, ageSeconds, expirationSeconds);
+            return null;
         }
-        // No results found or something else happened
-        return null;
+
+        // Still valid: promote into L1 for the remainder of its lifetime
+        CachedEntry entry = new CachedEntry(label, graphQLResult, createdAtStr);
+        l1Cache.put(subjectURI, entry);
+        return isStale(entry) ? entry.asStale() : entry;
+    }
+
+    private void removeEntry(String subjectURI) {
+        l1Cache.invalidate(subjectURI);
+
+        String updateString = PREFIXES +
+                "DELETE WHERE { <" + subjectURI + "> ?p ?o . }";
+
+        // Queued behind any pending save of the same entry so the removal is not overwritten
+        writeBehind.submit("cache.remove", updateString);
+
+         LOG.debug("Removed cache entry for {}", subjectURI);
     }
 
     /**
-     * Deletes the cached entry for the given prompt.
+     * Deletes up to {@code limit} cache entries created before the cutoff with one set-based update,
+     * and returns how many entries matched. The age check is part of the DELETE itself, so an entry
+     * saved again since it expired keeps its new version.
      */
-    public void removeCacheEntry(String prompt) {
-        String promptURI = generatePromptURI(prompt);
+    public int deleteEntriesCreatedBefore(Instant cutoff, int limit) {
+        String expired =
+                "{ SELECT ?entry WHERE { " +
+                "    ?entry a <" + CacheOntology.CachedEntry + "> ; " +
+                "      <" + CacheOntology.createdAt + "> ?createdAt . " +
+                "    FILTER(?createdAt < \"" + cutoff + "\"^^xsd:dateTime)" +
+                "  } LIMIT " + limit + " }";
+
+        int matched = blazegraphClient.select("cache.sweep.count",
+                PREFIXES + "SELECT (COUNT(?entry) AS ?count) WHERE { " + expired + " }",
+                results -> results.hasNext() ? results.nextSolution().getLiteral("count").getInt() : 0);
+        if (matched == 0) {
+            return 0;
+        }
 
         String updateString = PREFIXES +
-                "DELETE WHERE { <" + promptURI + "> ?p ?o . }";
+                "DELETE { ?entry ?p ?o } WHERE { " +
+                "  " + expired + " " +
+                "  ?entry ?p ?o ." +
+                "}";
+
+        blazegraphClient.update("cache.sweep.delete", updateString);
+
+        // Only L1 versions as old as the deleted ones; an entry saved again in the meantime is newer
+        l1Cache.asMap().values().removeIf(entry -> Instant.parse(entry.createdAt).isBefore(cutoff));
+        return matched;
+    }
 
-        UpdateRequest updateRequest = UpdateFactory.create(updateString);
-        UpdateProcessor processor =
-                UpdateExecutionFactory.createRemoteForm(updateRequest, blazegraphEndpoint);
-        processor.execute();
+    /**
+     * How long an entry is kept after creation: the expiration, plus the stale grace window if enabled.
+     */
+    public Duration retention() {
+        long graceMinutes = staleWhileRevalidate ? staleGraceMinutes : 0;
+        return Duration.ofMinutes(cacheExpirationMinutes + graceMinutes);
+    }
+
+    /**
+     * Time an entry may still live in L1, based on when it was originally created.
+     */
+    private Duration remainingLifetime(CachedEntry entry) {
+        Duration age = Duration.between(Instant.parse(entry.createdAt), Instant.now());
+        Duration remaining = retention().minus(age);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
 
-         LOG.debug("Removed cache entry for promptURI={}", promptURI);
+    /**
+     * An entry past the expiration but still retained is only served in stale-while-revalidate mode.
+     */
+    private boolean isStale(CachedEntry entry) {
+        Duration age = Duration.between(Instant.parse(entry.createdAt), Instant.now());
+        return age.compareTo(Duration.ofMinutes(cacheExpirationMinutes)) >= 0;
     }
 
     /**
@@ -156,11 +420,21 @@ public class BlazegraphCacheService {
         public final String prompt;
         public final String graphQLResult;
         public final String createdAt;
+        public final boolean stale;
 
         public CachedEntry(String prompt, String graphQLResult, String createdAt) {
+            this(prompt, graphQLResult, createdAt, false);
+        }
+
+        public CachedEntry(String prompt, String graphQLResult, String createdAt, boolean stale) {
             this.prompt = prompt;
             this.graphQLResult = graphQLResult;
             this.createdAt = createdAt;
+            this.stale = stale;
+        }
+
+        CachedEntry asStale() {
+            return new CachedEntry(prompt, graphQLResult, createdAt, true);
         }
     }
 }
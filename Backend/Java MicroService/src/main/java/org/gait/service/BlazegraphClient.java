@@ -0,0 +1,145 @@
+package org.gait.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
+import org.apache.jena.sparql.exec.http.QuerySendMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Single entry point for SPARQL queries, updates and RDF loads against Blazegraph.
+ * All calls share one keep-alive {@link HttpClient}, the configured timeouts and result format,
+ * and are timed per operation (blazegraph.requests, tagged with operation, type and outcome).
+ */
+@Component
+@RequiredArgsConstructor
+public class BlazegraphClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlazegraphClient.class);
+
+    private static final String TIMER = "blazegraph.requests";
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${blazegraph.endpoint:http://localhost:9999/blazegraph/namespace/kb/sparql}")
+    private String blazegraphEndpoint;
+
+    @Value("${blazegraph.connect-timeout-ms:2000}")
+    private long connectTimeoutMs;
+
+    /**
+     * Upper bound for a whole query, update or load, including reading the response.
+     */
+    @Value("${blazegraph.request-timeout-ms:10000}")
+    private long requestTimeoutMs;
+
+    /**
+     * Result format requested for SELECT queries, e.g. application/sparql-results+json,
+     * application/sparql-results+xml or text/tab-separated-values.
+     */
+    @Value("${blazegraph.select.accept:application/sparql-results+json}")
+    private String selectAccept;
+
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void initHttpClient() {
+        // Blazegraph is plain HTTP/1.1, skip the h2c upgrade attempt on every new connection
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+    }
+
+    /**
+     * Runs a SELECT query and hands the results to the handler, which must consume them before returning.
+     */
+    public <T> T select(String operation, String queryString, Function<ResultSet, T> handler) {
+        return time(operation, "query", () -> {
+            try (QueryExecution qexec = QueryExecutionHTTP.newBuilder()
+                    .endpoint(blazegraphEndpoint)
+                    .httpClient(httpClient)
+                    .sendMode(QuerySendMode.asPost)
+                    .acceptHeader(selectAccept)
+                    .query(QueryFactory.create(queryString))
+                    .timeout(requestTimeoutMs, TimeUnit.MILLISECONDS)
+                    .build()) {
+                return handler.apply(qexec.execSelect());
+            }
+        });
+    }
+
+    /**
+     * Sends a SPARQL update as an HTML form post, like UpdateExecutionFactory.createRemoteForm.
+     */
+    public void update(String operation, String updateString) {
+        String form = "update=" + URLEncoder.encode(updateString, StandardCharsets.UTF_8);
+        time(operation, "update", () -> send(blazegraphEndpoint, "application/x-www-form-urlencoded", form));
+    }
+
+    /**
+     * Loads Turtle data into the default graph.
+     */
+    public void loadTurtle(String operation, String turtle) {
+        time(operation, "load", () -> send(blazegraphEndpoint + "?default", "text/turtle", turtle));
+    }
+
+    private Void send(String url, String contentType, String body) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(requestTimeoutMs))
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() / 100 != 2) {
+                throw new RuntimeException("Blazegraph returned HTTP " + response.statusCode() + ": " + response.body());
+            }
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Blazegraph request failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while calling Blazegraph", e);
+        }
+    }
+
+    private <T> T time(String operation, String type, Supplier<T> call) {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            Timer.builder(TIMER)
+                    .tag("operation", operation)
+                    .tag("type", type)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(elapsed, TimeUnit.NANOSECONDS);
+            LOG.debug("Blazegraph {} {} took {} ms ({})", type, operation, elapsed / 1_000_000, outcome);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.gait.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.apache.jena.update.UpdateFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for Blazegraph updates (history records, cache saves and removals).
+ * Callers enqueue a SPARQL update and return immediately; a background writer drains the queue
+ * and sends up to {@code batchSize} updates as one request, joined with ";".
+ *
+ * Updates are written in submission order, so a removal never overtakes the save it follows. When the queue
+ * is full, a caller blocks until the writer makes room, which slows producers down to Blazegraph's pace
+ * instead of dropping writes. Failed batches are retried with exponential backoff and then sent one update
+ * at a time, so one bad update does not take the rest of its batch with it; pending updates are flushed on shutdown.
+ */
+@Component
+@RequiredArgsConstructor
+public class BlazegraphWriteBehind {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlazegraphWriteBehind.class);
+
+    private final BlazegraphClient blazegraphClient;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * When disabled, every update is sent synchronously by the caller.
+     */
+    @Value("${blazegraph.write-behind.enabled:true}")
+    private boolean enabled;
+
+    @Value("${blazegraph.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${blazegraph.write-behind.batch-size:200}")
+    private int batchSize;
+
+    /**
+     * How long the writer waits for more updates before sending a partial batch.
+     */
+    @Value("${blazegraph.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    /**
+     * How often a caller blocked on a full queue checks whether the writer is shutting down.
+     */
+    @Value("${blazegraph.write-behind.offer-timeout-ms:50}")
+    private long offerTimeoutMs;
+
+    @Value("${blazegraph.write-behind.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${blazegraph.write-behind.retry-backoff-ms:200}")
+    private long retryBackoffMs;
+
+    private BlockingQueue<PendingUpdate> queue;
+    private Thread writer;
+    private volatile boolean running;
+    private Counter droppedUpdates;
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        Gauge.builder("blazegraph.write-behind.queue", queue, BlockingQueue::size)
+                .description("Updates waiting to be written to Blazegraph")
+                .register(meterRegistry);
+        droppedUpdates = Counter.builder("blazegraph.write-behind.dropped")
+                .description("Updates given up on after all retries")
+                .register(meterRegistry);
+
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::drainLoop, "blazegraph-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a SPARQL update (which may carry its own PREFIX declarations) for the background writer.
+     *
+     * @throws org.apache.jena.query.QueryParseException if the update is not valid SPARQL
+     */
+    public void submit(String operation, String updateString) {
+        // Reject malformed updates here, where the caller can see the error, rather than failing a whole batch
+        UpdateFactory.create(updateString);
+
+        if (!running) {
+            blazegraphClient.update(operation, updateString);
+            return;
+        }
+        PendingUpdate update = new PendingUpdate(operation, updateString);
+        try {
+            // Queue full: wait for the writer rather than writing directly, which would overtake queued updates
+            while (!queue.offer(update, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    // Shut down while waiting, the writer is flushing what is queued
+                    blazegraphClient.update(operation, updateString);
+                    return;
+                }
+                LOG.debug("Write-behind queue full, {} waiting for the writer", operation);
+            }
+            if (!running && queue.remove(update)) {
+                // Queued after the writer's final drain, nobody else will write it
+                blazegraphClient.update(operation, updateString);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing Blazegraph update " + operation, e);
+        }
+    }
+
+    private void drainLoop() {
+        List<PendingUpdate> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingUpdate first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                // Shutdown: whatever is left is flushed by stop()
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.error("Write-behind writer error: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends a batch as one update request, retrying with backoff. If it still fails, the updates are sent
+     * one by one, in order, and only those Blazegraph rejects are dropped.
+     */
+    private void write(List<PendingUpdate> batch) throws InterruptedException {
+        StringBuilder request = new StringBuilder();
+        for (PendingUpdate update : batch) {
+            if (request.length() > 0) {
+                request.append(" ;\n");
+            }
+            request.append(update.updateString);
+        }
+
+        if (sendWithRetry("write-behind.batch", request.toString())) {
+            LOG.debug("Wrote {} queued updates to Blazegraph", batch.size());
+            return;
+        }
+
+        LOG.warn("Batch of {} queued updates failed after {} attempts, writing them one at a time", batch.size(), maxAttempts);
+        int dropped = 0;
+        int consecutiveFailures = 0;
+        for (PendingUpdate update : batch) {
+            if (consecutiveFailures >= maxAttempts) {
+                // Not one bad update but Blazegraph itself failing, don't wait out a timeout per update
+                dropped++;
+                continue;
+            }
+            try {
+                blazegraphClient.update(update.operation, update.updateString);
+                consecutiveFailures = 0;
+            } catch (Exception e) {
+                dropped++;
+                consecutiveFailures++;
+                LOG.error("Dropping queued {} update: {}", update.operation, e.getMessage());
+            }
+        }
+        if (dropped > 0) {
+            droppedUpdates.increment(dropped);
+            LOG.error("Dropped {} of {} queued updates", dropped, batch.size());
+        }
+    }
+
+    private boolean sendWithRetry(String operation, String updateString) throws InterruptedException {
+        long backoff = retryBackoffMs;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                blazegraphClient.update(operation, updateString);
+                return true;
+            } catch (Exception e) {
+                LOG.warn("Blazegraph write attempt {}/{} failed: {}", attempt, maxAttempts, e.getMessage());
+                if (attempt < maxAttempts) {
+                    Thread.sleep(backoff);
+                    backoff *= 2;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the writer and flushes everything still queued.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+
+        List<PendingUpdate> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            LOG.info("Flushing {} queued Blazegraph updates on shutdown", remaining.size());
+            for (int from = 0; from < remaining.size(); from += batchSize) {
+                write(remaining.subList(from, Math.min(from + batchSize, remaining.size())));
+            }
+        }
+    }
+
+    private static class PendingUpdate {
+        final String operation;
+        final String updateString;
+
+        PendingUpdate(String operation, String updateString) {
+            this.operation = operation;
+            this.updateString = updateString;
+        }
+    }
+}
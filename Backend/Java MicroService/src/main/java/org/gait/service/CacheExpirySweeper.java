@@ -0,0 +1,60 @@
+package org.gait.service;
+
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Periodically deletes cache entries older than the configured retention from Blazegraph,
+ * so prompts that are never asked again do not stay in the store forever.
+ */
+@Component
+@RequiredArgsConstructor
+public class CacheExpirySweeper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheExpirySweeper.class);
+
+    private final BlazegraphCacheService cacheService;
+
+    /**
+     * Maximum number of entries deleted by a single SPARQL update.
+     */
+    @Value("${cache.sweeper.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * Upper bound on batches per run, so one sweep cannot monopolise Blazegraph.
+     */
+    @Value("${cache.sweeper.max-batches:20}")
+    private int maxBatches;
+
+    @Scheduled(fixedDelayString = "${cache.sweeper.interval-ms:60000}",
+            initialDelayString = "${cache.sweeper.initial-delay-ms:60000}")
+    public void sweepExpiredEntries() {
+        long start = System.nanoTime();
+        Instant cutoff = Instant.now().minus(cacheService.retention());
+        int evicted = 0;
+
+        try {
+            for (int batch = 0; batch < maxBatches; batch++) {
+                int deleted = cacheService.deleteEntriesCreatedBefore(cutoff, batchSize);
+                evicted += deleted;
+                if (deleted < batchSize) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Cache sweep failed after evicting {} entries: {}", evicted, e.getMessage());
+            return;
+        }
+
+        long elapsedMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        LOG.info("Cache sweep evicted {} entries created before {} in {} ms", evicted, cutoff, elapsedMs);
+    }
+}
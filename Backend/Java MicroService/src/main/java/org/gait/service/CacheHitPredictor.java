@@ -0,0 +1,50 @@
+package org.gait.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Estimates how likely the next request for a prompt is a cache hit, from an exponentially weighted
+ * moving average of its recent lookups. Used to decide whether a speculative NLP parse is worth starting.
+ */
+@Component
+public class CacheHitPredictor {
+
+    /**
+     * Weight of the latest lookup in the moving average.
+     */
+    @Value("${client.nlp.speculation.ewma-alpha:0.3}")
+    private double alpha;
+
+    /**
+     * Hit probability assumed for a prompt with no recorded lookups.
+     */
+    @Value("${client.nlp.speculation.unseen-hit-probability:0.2}")
+    private double unseenHitProbability;
+
+    @Value("${client.nlp.speculation.max-tracked-prompts:10000}")
+    private long maxTrackedPrompts;
+
+    private Cache<String, Double> hitRatios;
+
+    @PostConstruct
+    public void initHitRatios() {
+        hitRatios = Caffeine.newBuilder()
+                .maximumSize(maxTrackedPrompts)
+                .build();
+    }
+
+    public double hitProbability(String prompt) {
+        Double ratio = hitRatios.getIfPresent(prompt);
+        return (ratio != null) ? ratio : unseenHitProbability;
+    }
+
+    public void record(String prompt, boolean hit) {
+        double observation = hit ? 1.0 : 0.0;
+        hitRatios.asMap().merge(prompt, observation, (ratio, latest) -> ratio + alpha * (latest - ratio));
+    }
+}
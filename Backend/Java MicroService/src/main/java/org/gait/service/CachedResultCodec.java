@@ -0,0 +1,60 @@
+package org.gait.service;
+
+import org.gait.util.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact form of a cached GraphQL result: gzip, then base64 so it fits a plain string literal
+ * without any escaping. Stored with {@link #GZIP_BASE64} as the entry's result encoding.
+ */
+public final class CachedResultCodec {
+
+    public static final String GZIP_BASE64 = "gzip+base64";
+
+    private CachedResultCodec() {
+        // Prevent instantiation.
+    }
+
+    public static String encode(String graphQLResult) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(graphQLResult.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getEncoder().encodeToString(compressed.toByteArray());
+    }
+
+    /**
+     * Decodes a stored literal according to its encoding; literals without one were stored as plain text.
+     * If a SHA-256 ({@link Hashing#sha256Hex}) was stored with it, the decoded result must match it.
+     *
+     * @return the result, or null if it does not match the stored SHA-256 or cannot be decompressed
+     */
+    public static String decode(String literal, String encoding, String expectedSha256) {
+        if (encoding == null || encoding.isEmpty()) {
+            return literal;
+        }
+        if (!GZIP_BASE64.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown cached result encoding: " + encoding);
+        }
+        String result;
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(literal)))) {
+            result = new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+        if (expectedSha256 != null && !expectedSha256.equals(Hashing.sha256Hex(result))) {
+            return null;
+        }
+        return result;
+    }
+}
@@ -1,26 +1,44 @@
 package org.gait.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
-import org.apache.jena.query.*;
-import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
-import org.apache.jena.sparql.exec.http.QuerySendMode;
 import org.gait.database.entity.UserEntity;
 import org.gait.database.service.EndpointCallService;
 import org.gait.dto.Api;
+import org.gait.dto.CacheStatus;
 import org.gait.dto.NLPResponse;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.http.*;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,432 +54,518 @@ public class ClientService {
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final BlazegraphCacheService cacheService;
     private final EndpointCallService endpointCallService;
+    private final SingleFlight singleFlight;
+    private final OntologyMappingService ontologyMappingService;
+    private final GraphQLQueryTemplates graphQLQueryTemplates;
+    private final GraphQLBatchDispatcher graphQLBatchDispatcher;
+    private final GraphQLApiClient graphQLApiClient;
 
-    // NLP and Blazegraph endpoints
+    @Qualifier("cacheRefreshExecutor")
+    private final TaskExecutor cacheRefreshExecutor;
+
+    @Qualifier("nlpSpeculationExecutor")
+    private final AsyncTaskExecutor nlpSpeculationExecutor;
+
+    @Qualifier("batchPromptExecutor")
+    private final TaskExecutor batchPromptExecutor;
+
+    private final CacheHitPredictor cacheHitPredictor;
+    private final RateLimitService rateLimitService;
+
+    /**
+     * Prompts with a background refresh in progress, so each stale entry is refreshed at most once at a time.
+     */
+    private final Set<String> refreshingPrompts = ConcurrentHashMap.newKeySet();
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Prompts currently being served, exposed as client.requests.in-flight to compare thread modes under load.
+     */
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+    // NLP endpoint
     @Value("${nlp.endpoint:http://localhost:5000/parse/with-api-detection}")
     private String nlpEndpoint;
 
-    @Value("${blazegraph.endpoint:http://localhost:9999/blazegraph/namespace/kb/sparql}")
-    private String blazegraphEndpoint;
-
-    // GitHub token from environment variable (or fallback empty)
-    @Value("${GITHUB_TOKEN:}")
-    private String githubToken;
+    /**
+     * Parsing a prompt is deterministic for much longer than upstream data stays fresh,
+     * so parse results get their own, longer-lived cache.
+     */
+    @Value("${nlp.cache.expiration.minutes:1440}")
+    private long nlpCacheExpirationMinutes;
 
-    private static final Logger logger = LoggerFactory.getLogger(ClientService.class);
+    @Value("${nlp.cache.max-size:10000}")
+    private long nlpCacheMaxSize;
 
     /**
-     * Load two TTL files at startup (GitHub + Countries) into Blazegraph.
+     * Starts the NLP parse alongside the cache lookup for prompts that are likely misses,
+     * trading a discarded parse on a hit for one less sequential round trip on a miss.
      */
-    @PostConstruct
-    public void loadGraphQLOntologiesToBlazegraph() {
-        loadTtlToBlazegraph("ontology/graphQLOntology_github.ttl");
-        loadTtlToBlazegraph("ontology/graphQLOntology_countries.ttl");
-    }
+    @Value("${client.nlp.speculation.enabled:false}")
+    private boolean speculativeParse;
 
     /**
-     * Helper that reads a TTL file from src/main/resources/ontology/
-     * and POSTs it to Blazegraph's default graph.
+     * Speculate only when the predicted hit probability is below this value.
      */
-    private void loadTtlToBlazegraph(String ttlFileName) {
-        try {
-            ClassPathResource ttlResource = new ClassPathResource(ttlFileName);
-            if (!ttlResource.exists()) {
-                logger.error("Ontology file not found: {}", ttlFileName);
-                return;
-            }
+    @Value("${client.nlp.speculation.hit-probability-threshold:0.5}")
+    private double speculationThreshold;
 
-            byte[] ttlBytes = ttlResource.getInputStream().readAllBytes();
-            String ttlContent = new String(ttlBytes, StandardCharsets.UTF_8);
+    /**
+     * Cache misses of one batch request resolved at the same time.
+     */
+    @Value("${client.batch.max-concurrency:8}")
+    private int batchMaxConcurrency;
 
-            String url = blazegraphEndpoint + "?default";
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType("text/turtle"));
+    private Cache<String, NLPResponse> nlpCache;
 
-            HttpEntity<String> entity = new HttpEntity<>(ttlContent, headers);
-            ResponseEntity<String> response = restTemplate.postForEntity(url, entity, String.class);
+    private static final Logger logger = LoggerFactory.getLogger(ClientService.class);
 
-            if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Loaded {} into Blazegraph successfully.", ttlFileName);
-            } else {
-                logger.error("Failed to load {}. HTTP status: {}", ttlFileName, response.getStatusCode());
-            }
-        } catch (Exception e) {
-            logger.error("Could not load TTL {}: {}", ttlFileName, e.getMessage());
-        }
+    @PostConstruct
+    public void init() {
+        nlpCache = Caffeine.newBuilder()
+                .maximumSize(nlpCacheMaxSize)
+                .expireAfterWrite(Duration.ofMinutes(nlpCacheExpirationMinutes))
+                .build();
+        meterRegistry.gauge("client.requests.in-flight", inFlightRequests);
     }
 
     /**
      * Main entry point: processes a client prompt and returns the final GraphQL API result.
-     * 1) Checks the cache
+     * 1) Checks the cache (a stale entry is returned at once and refreshed in the background)
      * 2) Calls the NLP
      * 3) Processes the NLP response
      */
-    public String handleClientPrompt(String prompt, UserEntity user) {
+    public PromptResult handleClientPrompt(String prompt, UserEntity user) {
+        inFlightRequests.incrementAndGet();
+        try {
+            return resolvePrompt(prompt, user);
+        } finally {
+            inFlightRequests.decrementAndGet();
+        }
+    }
+
+    private PromptResult resolvePrompt(String prompt, UserEntity user) {
+        Future<NLPResponse> speculation = startSpeculativeParse(prompt);
+
         // 1) Check for a valid cached entry
+        PromptResult cached = lookupCache(prompt);
+        if (cached != null) {
+            discardSpeculativeParse(speculation);
+            return cached;
+        }
+
+        String result = resolveMiss(prompt, speculation, api -> {
+            rateLimitService.consumeMiss(user, api);
+            endpointCallService.incrementCallCount(user, api);
+        });
+        return new PromptResult(result, CacheStatus.MISS);
+    }
+
+    /**
+     * Returns the cached result for the prompt as a HIT or STALE result (scheduling a refresh),
+     * or null on a miss. Lookup failures are treated as a miss.
+     */
+    private PromptResult lookupCache(String prompt) {
         try {
             BlazegraphCacheService.CachedEntry cached = cacheService.fetchCacheEntry(prompt);
+            cacheHitPredictor.record(prompt, cached != null);
+            if (cached != null && cached.stale) {
+                logger.info("Stale cache hit ({} chars), refreshing in background", cached.graphQLResult.length());
+                refreshInBackground(prompt);
+                return new PromptResult(cached.graphQLResult, CacheStatus.STALE);
+            }
             if (cached != null) {
-                logger.info("Cache hit! Cached GraphQL Result: {}", cached.graphQLResult);
-                return cached.graphQLResult;
+                logger.info("Cache hit! Cached GraphQL Result: {} chars", cached.graphQLResult.length());
+                return new PromptResult(cached.graphQLResult, CacheStatus.HIT);
             }
         } catch (Exception e) {
             logger.error("Cache lookup error: {}", e.getMessage());
         }
+        return null;
+    }
 
-        // 2) No cache found: call the NLP endpoint with the prompt
-        NLPResponse nlpResponse = callNlpService(prompt);
-        endpointCallService.incrementCallCount(user, Api.valueOf(nlpResponse.getApi()));
-        logger.info("Received NLP response: {}", nlpResponse);
+    /**
+     * Streaming mode, step 1: the cached result for the prompt, or null if it must be streamed from upstream.
+     */
+    public PromptResult findCachedPrompt(String prompt) {
+        return lookupCache(prompt);
+    }
 
-        // 3) Process the NLP response -> build GraphQL -> call external API -> cache the result
-        return processNlpResponse(nlpResponse, prompt);
+    /**
+     * Streaming mode: charges the user's quota for a cache miss before the response is committed.
+     * The parse is memoized, so {@link #streamPromptMiss} does not call the NLP service again.
+     *
+     * @throws RateLimitExceededException if the user's quota for the prompt's API is used up
+     */
+    public void consumeMissQuota(String prompt, UserEntity user) {
+        rateLimitService.consumeMiss(user, Api.valueOf(parsePrompt(prompt).getApi()));
     }
 
     /**
-     * Calls the external Python NLP endpoint to parse the prompt.
+     * Streaming mode, step 2: resolves a cache miss and writes the GraphQL response to {@code out}
+     * while it is read from the upstream API, instead of buffering it first. The body is kept once,
+     * for the cache, unless it exceeds graphql.streaming.max-payload-bytes.
+     * Not coalesced with concurrent misses or batched, since each caller owns its output stream.
+     *
+     * @return the response written to {@code out}, or null if it was too large to keep
      */
-    public NLPResponse callNlpService(String prompt) {
+    public String streamPromptMiss(String prompt, UserEntity user, OutputStream out) throws IOException {
+        inFlightRequests.incrementAndGet();
         try {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("prompt", prompt);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
+            NLPResponse nlpResponse = parsePrompt(prompt);
+            endpointCallService.incrementCallCount(user, Api.valueOf(nlpResponse.getApi()));
+            logger.info("Received NLP response: {}", nlpResponse);
+
+            OntologyMapping mapping = ontologyMappingService.lookup(nlpResponse);
+            GraphQLQueryTemplates.PreparedQuery query = graphQLQueryTemplates.prepare(nlpResponse, mapping);
+            if (query == null) {
+                return "";
+            }
 
-            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
-            ResponseEntity<String> response = restTemplate.postForEntity(nlpEndpoint, entity, String.class);
+            BlazegraphCacheService.CachedEntry sameQuery = fetchQueryCacheEntry(query.canonicalKey());
+            if (sameQuery != null && !sameQuery.stale) {
+                logger.info("Query cache hit for '{}'", sameQuery.prompt);
+                out.write(sameQuery.graphQLResult.getBytes(StandardCharsets.UTF_8));
+                cacheService.saveCacheEntry(prompt, sameQuery.graphQLResult, sameQuery.createdAt);
+                return sameQuery.graphQLResult;
+            }
 
-            if (response.getStatusCode().is2xxSuccessful()) {
-                return objectMapper.readValue(response.getBody(), NLPResponse.class);
-            } else {
-                throw new RuntimeException("Error calling NLP endpoint: " + response.getStatusCode());
+            GraphQLApiClient.StreamedResponse streamed = graphQLApiClient.streamExternalGraphQLApi(
+                    query.template.document, query.variables, query.api, out);
+            logger.info("Streamed {} bytes from GraphQL API ({})", streamed.bytes, query.api);
+            if (streamed.body == null) {
+                return null;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failed to parse NLP response", e);
+            BlazegraphCacheService.CachedEntry saved = cacheService.saveQueryCacheEntry(query.canonicalKey(), streamed.body);
+            cacheService.saveCacheEntry(prompt, saved.graphQLResult, saved.createdAt);
+            return streamed.body;
+        } finally {
+            inFlightRequests.decrementAndGet();
         }
     }
 
     /**
-     * Processes the NLP response:
-     *  - Retrieves mapping data from the ontology
-     *  - Builds the GraphQL query
-     *  - Invokes the external GraphQL API
-     *  - Caches and returns the final result
+     * Runs the NLP + GraphQL pipeline for a prompt that missed the cache.
+     * The API the prompt resolved to is reported to the call counter of every caller, before the
+     * GraphQL call, so a counter that throws (quota exceeded) fails only its own caller.
      */
-    public String processNlpResponse(NLPResponse response, String originalPrompt) {
+    private String resolveMiss(String prompt, Future<NLPResponse> speculation, Consumer<Api> callCounter) {
+        // Concurrent misses for the same prompt share one NLP parse and one GraphQL round trip
+        // 2) No cache found: parse the prompt (memoized, so an expired result skips the NLP call)
+        NLPResponse nlpResponse = singleFlight.execute("parse:" + prompt, () -> awaitSpeculativeParse(speculation, prompt));
+        callCounter.accept(Api.valueOf(nlpResponse.getApi()));
+        logger.info("Received NLP response: {}", nlpResponse);
+
+        // 3) Process the NLP response -> build GraphQL -> call external API -> cache the result
+        return singleFlight.execute("prompt:" + prompt, () -> processNlpResponse(nlpResponse, prompt));
+    }
+
+    /**
+     * Batch entry point: answers several prompts for one user and returns the results in input order.
+     * A prompt that appears more than once is resolved once and its result repeated.
+     */
+    public List<BatchPromptResult> handleClientPrompts(List<String> prompts, UserEntity user) {
+        Map<String, BatchPromptResult> byPrompt = new ConcurrentHashMap<>();
+        handleClientPrompts(prompts, user, result -> byPrompt.put(result.prompt, result));
+        return prompts.stream().map(byPrompt::get).toList();
+    }
+
+    /**
+     * Batch entry point that hands each unique prompt's result to the listener as soon as it is ready.
+     * Cache hits come from one bulk lookup; misses run in parallel on the batch executor, at most
+     * {@code batchMaxConcurrency} per batch. The listener is called from several threads; once it throws
+     * (e.g. the client went away) it gets no more results, but the batch still runs to completion.
+     * Call counts are recorded in one go once every prompt is done.
+     */
+    public void handleClientPrompts(List<String> prompts, UserEntity user, Consumer<BatchPromptResult> listener) {
+        inFlightRequests.incrementAndGet();
+        Consumer<BatchPromptResult> delivery = untilFailure(listener);
+        Map<Api, Long> callsByApi = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
         try {
-            OntologyMapping mapping = fetchOntologyMappings(response);
+            Set<String> uniquePrompts = new LinkedHashSet<>(prompts);
+
+            // 1) Bulk cache lookup
+            Map<String, BlazegraphCacheService.CachedEntry> cached;
+            try {
+                cached = cacheService.fetchCacheEntries(uniquePrompts);
+            } catch (Exception e) {
+                logger.error("Bulk cache lookup error: {}", e.getMessage());
+                cached = Map.of();
+            }
 
-            String graphQLQuery = buildGraphQLQuery(response, mapping);
-            System.out.println("Generated GraphQL query:\n" + graphQLQuery);
+            List<String> misses = new ArrayList<>();
+            for (String prompt : uniquePrompts) {
+                BlazegraphCacheService.CachedEntry entry = cached.get(prompt);
+                cacheHitPredictor.record(prompt, entry != null);
+                if (entry == null) {
+                    misses.add(prompt);
+                } else if (entry.stale) {
+                    refreshInBackground(prompt);
+                    delivery.accept(new BatchPromptResult(prompt, entry.graphQLResult, CacheStatus.STALE, null));
+                } else {
+                    delivery.accept(new BatchPromptResult(prompt, entry.graphQLResult, CacheStatus.HIT, null));
+                }
+            }
 
-            String externalResult = queryExternalGraphQLApi(graphQLQuery, response.getApi());
-            logger.info("GraphQL API result:\n{}", externalResult);
+            // 2) Misses in parallel, bounded per batch so one large batch cannot take the whole pool
+            Semaphore permits = new Semaphore(batchMaxConcurrency);
+            for (String prompt : misses) {
+                permits.acquireUninterruptibly();
+                Runnable task = () -> {
+                    BatchPromptResult outcome;
+                    try {
+                        String result = resolveMiss(prompt, null, api -> {
+                            // Over quota: this prompt fails with its own error and never reaches upstream
+                            rateLimitService.consumeMiss(user, api);
+                            callsByApi.merge(api, 1L, Long::sum);
+                        });
+                        outcome = new BatchPromptResult(prompt, result, CacheStatus.MISS, null);
+                    } catch (Exception e) {
+                        logger.error("Batch prompt '{}' failed: {}", prompt, e.getMessage());
+                        outcome = new BatchPromptResult(prompt, null, CacheStatus.MISS, e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                    delivery.accept(outcome);
+                };
+                try {
+                    pending.add(CompletableFuture.runAsync(task, batchPromptExecutor));
+                } catch (RejectedExecutionException e) {
+                    // Pool saturated: resolve on the caller's thread
+                    task.run();
+                }
+            }
+        } finally {
+            // Wait for the misses already started, then count every upstream call made, even if the batch failed
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
 
-            cacheService.saveCacheEntry(originalPrompt, externalResult);
-            return externalResult;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Error processing NLP response", e);
+            // 3) Call counts in bulk
+            endpointCallService.incrementCallCounts(user, callsByApi);
+            inFlightRequests.decrementAndGet();
         }
     }
 
     /**
-     * Builds the GraphQL query based on the NLP response + retrieved mappings.
-     * Has special logic for GitHub "user" vs "repositories/issues", etc.
+     * Passes results to the listener until it throws once; later results are dropped instead of failing the batch.
      */
-    public String buildGraphQLQuery(NLPResponse response, OntologyMapping map) {
-        String api = (response.getApi() != null) ? response.getApi().toUpperCase() : "";
-        int limit = (response.getLimit() > 0) ? response.getLimit() : 100;
-        String safeIdentifier = sanitizeSparqlString(response.getIdentifier());
-
-        List<String> fields = (response.getFields() != null && !response.getFields().isEmpty())
-                ? response.getFields()
-                : List.of("name");
-
-        if ("GITHUB".equals(api)) {
-            // Distinguish "user" as a direct fields query vs "repositories/issues" with pagination
-            String userField = map.userField;            // e.g. "user"
-            String userIdentifierArg = map.userIdentifierArg; // e.g. "login"
-            String targetField = map.targetField;        // e.g. "repositories" or possibly "user"
-
-            if ("user".equalsIgnoreCase(response.getTarget())) {
-                // Single-level: user(login: "X") { location, name, ... }
-                return buildGitHubUserFieldsQuery(userField, userIdentifierArg, safeIdentifier, fields);
-            } else {
-                // Multi-level: user(login: "X") { repositories(...) { nodes {...} } }
-                return buildGitHubNestedQuery(userField, userIdentifierArg, targetField, limit, fields, response, map, safeIdentifier);
+    private Consumer<BatchPromptResult> untilFailure(Consumer<BatchPromptResult> listener) {
+        AtomicBoolean failed = new AtomicBoolean();
+        return result -> {
+            if (failed.get()) {
+                return;
             }
+            try {
+                listener.accept(result);
+            } catch (RuntimeException e) {
+                if (failed.compareAndSet(false, true)) {
+                    logger.warn("Batch result listener failed, dropping the remaining results: {}", e.getMessage());
+                }
+            }
+        };
+    }
 
-        } else if ("COUNTRIES".equals(api)) {
-            // e.g.: query { continent(code: "AF") { name } }
-            return buildCountriesQuery(map.targetField, map.userIdentifierArg, safeIdentifier, fields);
-
-        } else {
-            logger.error("Unknown API: {}", api);
-            return "";
+    /**
+     * Starts parsing the prompt in the background if speculation is enabled, the prompt is likely a miss
+     * and its parse is not memoized already. Returns null when no speculation was started.
+     */
+    private Future<NLPResponse> startSpeculativeParse(String prompt) {
+        if (!speculativeParse
+                || nlpCache.getIfPresent(prompt) != null
+                || cacheHitPredictor.hitProbability(prompt) >= speculationThreshold) {
+            return null;
+        }
+        try {
+            return nlpSpeculationExecutor.submit(() -> parsePrompt(prompt));
+        } catch (TaskRejectedException e) {
+            logger.debug("Speculation pool full, parsing '{}' after the cache lookup", prompt);
+            return null;
         }
     }
 
     /**
-     * Helper for GitHub single-level user fields query
+     * Cache hit: the speculative parse is not needed. If it already finished, its result stays memoized.
      */
-    private String buildGitHubUserFieldsQuery(String userField,
-                                              String userIdentifierArg,
-                                              String safeIdentifier,
-                                              List<String> fields) {
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("query {\n");
-        sb.append("  ").append(userField) // => "user"
-                .append("(").append(userIdentifierArg) // => "login"
-                .append(": \"").append(safeIdentifier).append("\") {\n");
-
-        for (String f : fields) {
-            sb.append("    ").append(sanitizeSparqlString(f)).append("\n");
+    private void discardSpeculativeParse(Future<NLPResponse> speculation) {
+        if (speculation != null) {
+            speculation.cancel(true);
+            meterRegistry.counter("client.nlp.speculation", "outcome", "wasted").increment();
         }
-        sb.append("  }\n");
-        sb.append("}\n");
-        return sb.toString();
     }
 
     /**
-     * Helper for GitHub multi-level queries (repositories, issues, etc.)
+     * Cache miss: uses the speculative parse if one was started, otherwise parses now.
      */
-    private String buildGitHubNestedQuery(String userField,
-                                          String userIdentifierArg,
-                                          String targetField,
-                                          int limit,
-                                          List<String> fields,
-                                          NLPResponse response,
-                                          OntologyMapping map,
-                                          String safeIdentifier) {
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("query {\n");
-        sb.append("  ").append(userField)
-                .append("(").append(userIdentifierArg).append(": \"")
-                .append(safeIdentifier).append("\") {\n");
-
-        sb.append("    ").append(targetField).append("(");
-
-        if (response.getConstraints() != null && !response.getConstraints().isEmpty()) {
-            sb.append(map.constraintArgumentField) // e.g. orderBy
-                    .append(": { field: ")
-                    .append(map.constraintOrderingField)
-                    .append(", direction: ")
-                    .append(map.constraintDirection)
-                    .append("}, ");
+    private NLPResponse awaitSpeculativeParse(Future<NLPResponse> speculation, String prompt) {
+        if (speculation == null) {
+            return parsePrompt(prompt);
         }
-        sb.append("first: ").append(limit).append(") {\n");
-        sb.append("      nodes {\n");
-        for (String f : fields) {
-            sb.append("        ").append(sanitizeSparqlString(f)).append("\n");
+        try {
+            NLPResponse parsed = speculation.get();
+            meterRegistry.counter("client.nlp.speculation", "outcome", "used").increment();
+            return parsed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the NLP parse", e);
+        } catch (ExecutionException e) {
+            logger.warn("Speculative parse failed for '{}', retrying: {}", prompt, e.getCause().getMessage());
+            return parsePrompt(prompt);
         }
-        sb.append("      }\n");
-        sb.append("    }\n");
-        sb.append("  }\n");
-        sb.append("}\n");
-        return sb.toString();
     }
 
     /**
-     * Helper for Countries queries (one-level) e.g. "continent(code: "AF") { name }"
+     * Re-runs the NLP + GraphQL pipeline for a stale prompt on the refresh executor.
+     * At most one refresh per prompt runs at a time; refreshes that cannot be queued are dropped.
      */
-    private String buildCountriesQuery(String targetField,
-                                       String userIdentifierArg,
-                                       String safeIdentifier,
-                                       List<String> fields) {
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("query {\n");
-        sb.append("  ").append(targetField)
-                .append("(").append(userIdentifierArg)
-                .append(": \"").append(safeIdentifier)
-                .append("\") {\n");
-
-        for (String f : fields) {
-            sb.append("    ").append(sanitizeSparqlString(f)).append("\n");
+    private void refreshInBackground(String prompt) {
+        if (!refreshingPrompts.add(prompt)) {
+            return;
+        }
+        try {
+            cacheRefreshExecutor.execute(() -> {
+                try {
+                    processNlpResponse(parsePrompt(prompt), prompt);
+                    logger.info("Refreshed stale cache entry for prompt '{}'", prompt);
+                } catch (Exception e) {
+                    logger.error("Background refresh failed for prompt '{}': {}", prompt, e.getMessage());
+                } finally {
+                    refreshingPrompts.remove(prompt);
+                }
+            });
+        } catch (Exception e) {
+            refreshingPrompts.remove(prompt);
+            logger.warn("Could not schedule background refresh for prompt '{}': {}", prompt, e.getMessage());
         }
-        sb.append("  }\n");
-        sb.append("}\n");
-        return sb.toString();
     }
 
     /**
-     * Executes the external GraphQL API call and returns the response.
+     * Returns the parsed prompt from the NLP cache, calling the NLP service only on a miss.
+     * Concurrent misses for one prompt are already coalesced by the caller.
      */
-    public String queryExternalGraphQLApi(String graphQLQuery, String api) {
-        String publicEndpoint;
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-
-        if ("github".equalsIgnoreCase(api)) {
-            publicEndpoint = "https://api.github.com/graphql";
-            // Use your environment-based GitHub token
-            if (githubToken == null || githubToken.isBlank()) {
-                logger.warn("GITHUB_TOKEN not set or empty!");
-            }
-            headers.set("Authorization", "Bearer " + githubToken);
-        } else if ("countries".equalsIgnoreCase(api)) {
-            publicEndpoint = "https://countries.trevorblades.com/";
-        } else {
-            logger.error("Unknown API: {}", api);
-            return "";
+    public NLPResponse parsePrompt(String prompt) {
+        NLPResponse cached = nlpCache.getIfPresent(prompt);
+        if (cached != null) {
+            logger.debug("NLP cache hit for prompt '{}'", prompt);
+            return cached;
         }
+        NLPResponse parsed = callNlpService(prompt);
+        nlpCache.put(prompt, parsed);
+        return parsed;
+    }
 
-        Map<String, String> body = new HashMap<>();
-        body.put("query", graphQLQuery);
+    /**
+     * Calls the external Python NLP endpoint to parse the prompt.
+     */
+    public NLPResponse callNlpService(String prompt) {
+        try {
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("prompt", prompt);
 
-        HttpEntity<Map<String, String>> entity = new HttpEntity<>(body, headers);
-        ResponseEntity<String> response = restTemplate.postForEntity(publicEndpoint, entity, String.class);
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
 
-        if (response.getStatusCode().is2xxSuccessful()) {
-            return response.getBody();
-        } else {
-            logger.error("Error querying GraphQL API ({}): {}", api, response.getStatusCode());
-            return "";
+            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(payload, headers);
+            ResponseEntity<String> response = restTemplate.postForEntity(nlpEndpoint, entity, String.class);
+
+            if (response.getStatusCode().is2xxSuccessful()) {
+                return objectMapper.readValue(response.getBody(), NLPResponse.class);
+            } else {
+                throw new RuntimeException("Error calling NLP endpoint: " + response.getStatusCode());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to parse NLP response", e);
         }
     }
 
     /**
-     * Builds a SPARQL query to fetch relevant mappings, depending on the API (GitHub vs. Countries).
+     * Processes the NLP response:
+     *  - Retrieves mapping data from the in-memory ontology index
+     *  - Prepares the GraphQL query from its compiled template
+     *  - Returns the result cached for the same query, if any
+     *  - Otherwise invokes the external GraphQL API
+     *  - Caches and returns the final result
      */
-    private String buildSparqlQuery(NLPResponse response) {
-        String api = (response.getApi() != null) ? response.getApi().toUpperCase() : "";
-        String targetLabel = (response.getTarget() != null)
-                ? sanitizeSparqlString(response.getTarget().toLowerCase())
-                : "";
-
-        String constraintLabel = "";
-        if (response.getConstraints() != null && !response.getConstraints().isEmpty()) {
-            constraintLabel = sanitizeSparqlString(response.getConstraints().get(0).toLowerCase());
-        }
+    public String processNlpResponse(NLPResponse response, String originalPrompt) {
+        try {
+            OntologyMapping mapping = ontologyMappingService.lookup(response);
+            GraphQLQueryTemplates.PreparedQuery query = graphQLQueryTemplates.prepare(response, mapping);
+            if (query == null) {
+                return "";
+            }
 
-        if ("GITHUB".equals(api)) {
-            return """
-                PREFIX ex: <http://example.org/ontology#>
-                PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
-
-                SELECT ?userField ?userIdentifierArg
-                       ?targetField
-                       ?constraintArgumentField ?constraintOrderingField ?constraintDirection
-                WHERE {
-                  ?userConcept a rdfs:Class ;
-                               rdfs:label "user" ;
-                               ex:mapsToField ?userField ;
-                               ex:identifierArgument ?userIdentifierArg .
-
-                  ?targetConcept a rdfs:Class ;
-                                 rdfs:label "%s" ;
-                                 ex:mapsToField ?targetField .
-
-                  OPTIONAL {
-                    ?constraintConcept a rdfs:Class ;
-                                       rdfs:label "%s" ;
-                                       ex:mapsToArgumentField ?constraintArgumentField ;
-                                       ex:mapsToOrderingField ?constraintOrderingField ;
-                                       ex:defaultDirection ?constraintDirection .
-                  }
-                }
-                """.formatted(targetLabel, constraintLabel);
-
-        } else if ("COUNTRIES".equals(api)) {
-            return """
-                PREFIX ex: <http://example.org/ontology#>
-                PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
-
-                SELECT ?targetField ?targetGraphQLType ?identifierArg
-                WHERE {
-                  ?targetConcept a rdfs:Class ;
-                                 rdfs:label "%s" ;
-                                 ex:mapsToGraphQLType ?targetGraphQLType ;
-                                 ex:mapsToField ?targetField ;
-                                 ex:identifierArgument ?identifierArg .
-                }
-                """.formatted(targetLabel);
-        }
+            // Concurrent prompts that resolve to the same query share one upstream call
+            String queryKey = query.canonicalKey();
+            BlazegraphCacheService.CachedEntry result =
+                    singleFlight.execute("query:" + queryKey, () -> resolveQuery(query));
 
-        return null;
+            cacheService.saveCacheEntry(originalPrompt, result.graphQLResult, result.createdAt);
+            return result.graphQLResult;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error processing NLP response", e);
+        }
     }
 
     /**
-     * Runs the SPARQL query against Blazegraph to retrieve the ontology mappings needed.
+     * Resolves the GraphQL result for a prepared query, from the query-level cache or the external API.
      */
-    private OntologyMapping fetchOntologyMappings(NLPResponse response) {
-        String sparql = buildSparqlQuery(response);
-        if (sparql == null) {
-            logger.error("No SPARQL query built for API: {}", response.getApi());
-            return new OntologyMapping();
-        }
-        logger.info("SPARQL Query:\n{}", sparql);
-
-        Query query = QueryFactory.create(sparql);
-        try (QueryExecution qexec = QueryExecutionHTTP.newBuilder()
-                .endpoint(blazegraphEndpoint)
-                .query(query)
-                .sendMode(QuerySendMode.asPost)
-                .build()) {
-
-            ResultSet results = qexec.execSelect();
-            OntologyMapping map = new OntologyMapping();
-            if (results.hasNext()) {
-                QuerySolution sol = results.nextSolution();
-
-                if ("GITHUB".equalsIgnoreCase(response.getApi())) {
-                    map.userField = getLiteralString(sol, "userField");
-                    map.userIdentifierArg = getLiteralString(sol, "userIdentifierArg");
-                    map.targetField = getLiteralString(sol, "targetField");
-                    map.constraintArgumentField = getLiteralString(sol, "constraintArgumentField");
-                    map.constraintOrderingField = getLiteralString(sol, "constraintOrderingField");
-                    map.constraintDirection = getLiteralString(sol, "constraintDirection");
-
-                } else if ("COUNTRIES".equalsIgnoreCase(response.getApi())) {
-                    map.targetField       = getLiteralString(sol, "targetField");
-                    map.targetGraphQLType = getLiteralString(sol, "targetGraphQLType");
-                    map.userIdentifierArg = getLiteralString(sol, "identifierArg");
-                }
-            }
-            return map;
+    private BlazegraphCacheService.CachedEntry resolveQuery(GraphQLQueryTemplates.PreparedQuery query) {
+        // A differently worded prompt may already have resolved to the same query
+        BlazegraphCacheService.CachedEntry sameQuery = fetchQueryCacheEntry(query.canonicalKey());
+        if (sameQuery != null && !sameQuery.stale) {
+            logger.info("Query cache hit for '{}'", sameQuery.prompt);
+            return sameQuery;
         }
+
+        logger.info("GraphQL query variables {} for template:\n{}", query.variables, query.template.document);
+
+        String externalResult = graphQLBatchDispatcher.execute(query);
+        logger.info("GraphQL API result: {} chars", (externalResult != null) ? externalResult.length() : 0);
+
+        return cacheService.saveQueryCacheEntry(query.canonicalKey(), externalResult);
     }
 
     /**
-     * Safely extracts a literal string from a SPARQL query solution.
+     * Looks up the query-level cache; lookup failures are treated as a miss.
      */
-    private String getLiteralString(QuerySolution sol, String varName) {
-        if (!sol.contains(varName)) return null;
-        return sol.get(varName).isLiteral() ? sol.getLiteral(varName).getString() : null;
+    private BlazegraphCacheService.CachedEntry fetchQueryCacheEntry(String queryKey) {
+        try {
+            return cacheService.fetchQueryCacheEntry(queryKey);
+        } catch (Exception e) {
+            logger.error("Query cache lookup error: {}", e.getMessage());
+            return null;
+        }
     }
 
     /**
-     * Simple container for the ontology mappings retrieved via SPARQL.
+     * Result of one prompt of a batch request; error is set instead of graphQLResult if the prompt failed.
      */
-    private static class OntologyMapping {
-        // For GitHub
-        String userField;             // e.g. "user"
-        String userIdentifierArg;     // e.g. "login"
-
-        // For "repositories", "issues", "country", "continent", etc.
-        String targetField;           // e.g. "repositories" or "continent"
-        String targetGraphQLType;     // e.g. "Continent"
-
-        // For constraints like "most starred"
-        String constraintArgumentField;  // e.g. "orderBy"
-        String constraintOrderingField;  // e.g. "STARGAZERS"
-        String constraintDirection;      // e.g. "DESC"
+    public static class BatchPromptResult {
+        public final String prompt;
+        public final String graphQLResult;
+        public final CacheStatus cacheStatus;
+        public final String error;
+
+        public BatchPromptResult(String prompt, String graphQLResult, CacheStatus cacheStatus, String error) {
+            this.prompt = prompt;
+            this.graphQLResult = graphQLResult;
+            this.cacheStatus = cacheStatus;
+            this.error = error;
+        }
     }
 
     /**
-     * Sanitizes user-provided strings so they don't break SPARQL or GraphQL queries.
+     * Result of a client prompt together with how it was served.
      */
-    private String sanitizeSparqlString(String input) {
-        if (input == null) return "";
-        return input
-                .replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("'", "");
+    public static class PromptResult {
+        public final String graphQLResult;
+        public final CacheStatus cacheStatus;
+
+        public PromptResult(String graphQLResult, CacheStatus cacheStatus) {
+            this.graphQLResult = graphQLResult;
+            this.cacheStatus = cacheStatus;
+        }
     }
 }
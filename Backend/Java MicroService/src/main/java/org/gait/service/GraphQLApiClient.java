@@ -0,0 +1,160 @@
+package org.gait.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.*;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends GraphQL documents to the public APIs (GitHub, Countries).
+ */
+@Component
+@RequiredArgsConstructor
+public class GraphQLApiClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(GraphQLApiClient.class);
+
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${graphql.github.endpoint:https://api.github.com/graphql}")
+    private String githubEndpoint;
+
+    @Value("${graphql.countries.endpoint:https://countries.trevorblades.com/}")
+    private String countriesEndpoint;
+
+    // GitHub token from environment variable (or fallback empty)
+    @Value("${GITHUB_TOKEN:}")
+    private String githubToken;
+
+    /**
+     * Largest upstream body kept in memory by {@link #streamExternalGraphQLApi}; larger bodies are still
+     * passed through to the client but not returned for caching.
+     */
+    @Value("${graphql.streaming.max-payload-bytes:5242880}")
+    private int maxPayloadBytes;
+
+    /**
+     * Executes the external GraphQL API call with the given variables and returns the response.
+     */
+    public String queryExternalGraphQLApi(String graphQLQuery, Map<String, Object> variables, String api) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        String publicEndpoint = resolveEndpoint(api, headers);
+        if (publicEndpoint == null) {
+            return "";
+        }
+
+        HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody(graphQLQuery, variables), headers);
+        ResponseEntity<String> response = restTemplate.postForEntity(publicEndpoint, entity, String.class);
+
+        if (response.getStatusCode().is2xxSuccessful()) {
+            return response.getBody();
+        } else {
+            logger.error("Error querying GraphQL API ({}): {}", api, response.getStatusCode());
+            return "";
+        }
+    }
+
+    /**
+     * Executes the external GraphQL API call and copies the response body to {@code out} as it arrives,
+     * keeping a copy of up to {@code graphql.streaming.max-payload-bytes} for the cache.
+     *
+     * @return the response body, decoded once; null if the call failed or the body was larger than the limit
+     */
+    public StreamedResponse streamExternalGraphQLApi(String graphQLQuery, Map<String, Object> variables,
+                                                     String api, OutputStream out) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        String publicEndpoint = resolveEndpoint(api, headers);
+        if (publicEndpoint == null) {
+            return new StreamedResponse(null, 0);
+        }
+
+        Map<String, Object> body = requestBody(graphQLQuery, variables);
+        RequestCallback request = clientRequest -> {
+            clientRequest.getHeaders().addAll(headers);
+            objectMapper.writeValue(clientRequest.getBody(), body);
+        };
+        ResponseExtractor<StreamedResponse> passThrough = response -> {
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                logger.error("Error querying GraphQL API ({}): {}", api, response.getStatusCode());
+                return new StreamedResponse(null, 0);
+            }
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            try (InputStream in = response.getBody()) {
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    total += read;
+                    if (copy != null && total <= maxPayloadBytes) {
+                        copy.write(buffer, 0, read);
+                    } else {
+                        copy = null;
+                    }
+                }
+            }
+            out.flush();
+            if (copy == null) {
+                logger.warn("GraphQL API ({}) returned {} bytes, over the {} byte limit; not cached",
+                        api, total, maxPayloadBytes);
+                return new StreamedResponse(null, total);
+            }
+            return new StreamedResponse(copy.toString(StandardCharsets.UTF_8), total);
+        };
+        return restTemplate.execute(publicEndpoint, HttpMethod.POST, request, passThrough);
+    }
+
+    /**
+     * Returns the endpoint for the API and adds its auth header, or null for an unknown API.
+     */
+    private String resolveEndpoint(String api, HttpHeaders headers) {
+        if ("github".equalsIgnoreCase(api)) {
+            // Use your environment-based GitHub token
+            if (githubToken == null || githubToken.isBlank()) {
+                logger.warn("GITHUB_TOKEN not set or empty!");
+            }
+            headers.set("Authorization", "Bearer " + githubToken);
+            return githubEndpoint;
+        } else if ("countries".equalsIgnoreCase(api)) {
+            return countriesEndpoint;
+        }
+        logger.error("Unknown API: {}", api);
+        return null;
+    }
+
+    private Map<String, Object> requestBody(String graphQLQuery, Map<String, Object> variables) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("query", graphQLQuery);
+        body.put("variables", variables);
+        return body;
+    }
+
+    /**
+     * Outcome of a streamed call: the body kept for caching (null if failed or too large) and its size.
+     */
+    public static class StreamedResponse {
+        public final String body;
+        public final long bytes;
+
+        public StreamedResponse(String body, long bytes) {
+            this.body = body;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.gait.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.RequiredArgsConstructor;
+import org.gait.service.GraphQLQueryTemplates.PreparedQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * DataLoader-style batching of upstream GraphQL calls. Queries for the same API that arrive within
+ * {@code windowMs} of each other are merged into one document, each under its own alias (q0, q1, ...)
+ * with its variables renamed to match, and sent as a single request. The response is split back per
+ * caller: {@code data.q1} becomes the caller's {@code data.<rootField>}, and errors are routed by path.
+ *
+ * Off by default: every call then waits up to the window before it is sent, which only pays off
+ * when many distinct queries hit the same API at once.
+ */
+@Component
+@RequiredArgsConstructor
+public class GraphQLBatchDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphQLBatchDispatcher.class);
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$([A-Za-z_][A-Za-z0-9_]*)");
+
+    private final GraphQLApiClient graphQLApiClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${graphql.batching.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * How long the first query of a batch waits for others to join before the batch is sent.
+     */
+    @Value("${graphql.batching.window-ms:10}")
+    private long windowMs;
+
+    @Value("${graphql.batching.max-batch-size:10}")
+    private int maxBatchSize;
+
+    /**
+     * The upstream read timeout; a caller waits at most the window plus this for its batch to answer.
+     */
+    @Value("${http.client.read-timeout-ms:30000}")
+    private long readTimeoutMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    /**
+     * Runs the query, merged with concurrent queries for the same API when batching is enabled.
+     *
+     * @return the upstream response body for this query alone, or "" if the upstream call failed
+     */
+    public String execute(PreparedQuery query) {
+        if (!enabled || maxBatchSize < 2) {
+            return graphQLApiClient.queryExternalGraphQLApi(query.template.document, query.variables, query.api);
+        }
+
+        Batch batch;
+        CompletableFuture<String> result = new CompletableFuture<>();
+        boolean leader;
+        lock.lock();
+        try {
+            batch = openBatches.get(query.api);
+            leader = (batch == null);
+            if (leader) {
+                batch = new Batch(query.api);
+                openBatches.put(query.api, batch);
+            }
+            batch.members.add(new Member(query, result));
+            if (batch.members.size() >= maxBatchSize) {
+                // Full: close it so the next query starts a new batch, and wake the leader
+                openBatches.remove(query.api);
+                batch.full.complete(null);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            awaitWindow(batch);
+            send(batch);
+        }
+
+        long timeoutMs = windowMs + readTimeoutMs;
+        try {
+            // Completes the waiter exceptionally if the merged call hangs, instead of blocking with it
+            return result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                LOG.warn("Batched {} request did not answer within {} ms", query.api, timeoutMs);
+                throw new IllegalStateException("Batched " + query.api + " request timed out after " + timeoutMs + " ms", e.getCause());
+            }
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private void awaitWindow(Batch batch) {
+        try {
+            batch.full.get(windowMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Window elapsed, send whatever has joined
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            openBatches.remove(batch.api, batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Batch batch) {
+        List<Member> members = batch.members;
+        try {
+            if (members.size() == 1) {
+                PreparedQuery query = members.get(0).query;
+                members.get(0).result.complete(graphQLApiClient.queryExternalGraphQLApi(
+                        query.template.document, query.variables, query.api));
+                return;
+            }
+
+            Map<String, Object> variables = new LinkedHashMap<>();
+            String document = merge(members, variables);
+            LOG.debug("Sending {} merged {} queries as one request", members.size(), batch.api);
+            String response = graphQLApiClient.queryExternalGraphQLApi(document, variables, batch.api);
+            split(members, response);
+        } catch (Exception e) {
+            LOG.error("Batched {} request failed: {}", batch.api, e.getMessage());
+            for (Member member : members) {
+                member.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * query($q0_login: String!, $q1_login: String!) { q0: user(login: $q0_login) {...} q1: user(login: $q1_login) {...} }
+     */
+    String merge(List<Member> members, Map<String, Object> variables) {
+        StringBuilder declarations = new StringBuilder();
+        StringBuilder selections = new StringBuilder();
+        for (int i = 0; i < members.size(); i++) {
+            PreparedQuery query = members.get(i).query;
+            String prefix = alias(i) + "_";
+
+            for (Map.Entry<String, String> var : query.template.variableTypes.entrySet()) {
+                if (declarations.length() > 0) {
+                    declarations.append(", ");
+                }
+                declarations.append("$").append(prefix).append(var.getKey()).append(": ").append(var.getValue());
+            }
+            for (Map.Entry<String, Object> value : query.variables.entrySet()) {
+                variables.put(prefix + value.getKey(), value.getValue());
+            }
+
+            Matcher matcher = VARIABLE.matcher(query.template.selection);
+            String selection = matcher.replaceAll(m -> Matcher.quoteReplacement("$" + prefix + m.group(1)));
+            selections.append("  ").append(alias(i)).append(": ").append(selection).append("\n");
+        }
+        return "query(" + declarations + ") {\n" + selections + "}";
+    }
+
+    /**
+     * Completes each member with {"data": {rootField: data.q<i>}, "errors": [...]}, keeping only the
+     * errors whose path starts at the member's alias (rewritten to its root field) and those without a path.
+     */
+    void split(List<Member> members, String response) throws Exception {
+        if (response == null || response.isEmpty()) {
+            for (Member member : members) {
+                member.result.complete("");
+            }
+            return;
+        }
+
+        JsonNode root = objectMapper.readTree(response);
+        JsonNode data = root.path("data");
+        JsonNode errors = root.path("errors");
+
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            String alias = alias(i);
+            String rootField = member.query.template.rootField;
+
+            ObjectNode own = objectMapper.createObjectNode();
+            if (data.isObject()) {
+                own.putObject("data").set(rootField, data.get(alias));
+            } else if (!data.isMissingNode()) {
+                own.set("data", data);
+            }
+
+            ArrayNode ownErrors = objectMapper.createArrayNode();
+            for (JsonNode error : errors) {
+                JsonNode path = error.path("path");
+                if (!path.isArray() || path.isEmpty()) {
+                    ownErrors.add(error);
+                } else if (alias.equals(path.get(0).asText())) {
+                    ObjectNode rewritten = error.deepCopy();
+                    ((ArrayNode) rewritten.get("path")).set(0, objectMapper.getNodeFactory().textNode(rootField));
+                    ownErrors.add(rewritten);
+                }
+            }
+            if (!ownErrors.isEmpty()) {
+                own.set("errors", ownErrors);
+            }
+
+            member.result.complete(objectMapper.writeValueAsString(own));
+        }
+    }
+
+    private static String alias(int index) {
+        return "q" + index;
+    }
+
+    private static class Batch {
+        final String api;
+        final List<Member> members = new ArrayList<>();
+        final CompletableFuture<Void> full = new CompletableFuture<>();
+
+        Batch(String api) {
+            this.api = api;
+        }
+    }
+
+    static class Member {
+        final PreparedQuery query;
+        final CompletableFuture<String> result;
+
+        Member(PreparedQuery query, CompletableFuture<String> result) {
+            this.query = query;
+            this.result = result;
+        }
+    }
+}
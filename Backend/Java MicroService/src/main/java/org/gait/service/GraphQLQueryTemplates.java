@@ -0,0 +1,244 @@
+package org.gait.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.gait.dto.NLPResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Compiles one GraphQL document per query shape (api, target, constraint, sorted field list) and caches it.
+ * Per-request values (identifier, limit) are passed as GraphQL variables, so the document text
+ * for a shape never changes and is built only once.
+ */
+@Component
+public class GraphQLQueryTemplates {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphQLQueryTemplates.class);
+
+    /**
+     * GraphQL type of the identifier argument per API, e.g. user(login: String!) and continent(code: ID!).
+     */
+    private static final Map<String, String> IDENTIFIER_TYPES = Map.of(
+            "GITHUB", "String!",
+            "COUNTRIES", "ID!");
+
+    private static final String LIMIT_VARIABLE = "first";
+
+    @Value("${graphql.templates.max-size:500}")
+    private long templatesMaxSize;
+
+    private Cache<String, CompiledTemplate> templates;
+
+    @PostConstruct
+    public void initTemplates() {
+        templates = Caffeine.newBuilder()
+                .maximumSize(templatesMaxSize)
+                .build();
+    }
+
+    /**
+     * Builds the GraphQL request for the NLP response + retrieved mappings.
+     * Has special logic for GitHub "user" vs "repositories/issues", etc.
+     *
+     * @return the prepared query, or null if the API is unknown or the ontology has no mapping for the request
+     */
+    public PreparedQuery prepare(NLPResponse response, OntologyMapping map) {
+        String api = (response.getApi() != null) ? response.getApi().toUpperCase() : "";
+        int limit = (response.getLimit() > 0) ? response.getLimit() : 100;
+        String identifier = (response.getIdentifier() != null) ? response.getIdentifier() : "";
+
+        List<String> fields = sortedDistinctFields(response.getFields());
+
+        Map<String, Object> variables = new LinkedHashMap<>();
+        CompiledTemplate template;
+
+        if ("GITHUB".equals(api)) {
+            if (map.userField == null || map.userIdentifierArg == null || map.targetField == null) {
+                LOG.error("No ontology mapping for GitHub target: {}", response.getTarget());
+                return null;
+            }
+            variables.put(map.userIdentifierArg, identifier);
+            if ("user".equalsIgnoreCase(response.getTarget())) {
+                // Single-level: user(login: $login) { location, name, ... }
+                template = compile(api + "|user|" + map.userField + "|" + map.userIdentifierArg + "|" + fields,
+                        key -> compileRootFieldsTemplate(key, api, map.userField, map.userIdentifierArg, fields));
+            } else {
+                // Multi-level: user(login: $login) { repositories(..., first: $first) { nodes {...} } }
+                boolean constrained = response.getConstraints() != null && !response.getConstraints().isEmpty()
+                        && map.constraintArgumentField != null;
+                String constraint = constrained
+                        ? map.constraintArgumentField + ":" + map.constraintOrderingField + ":" + map.constraintDirection
+                        : "";
+                variables.put(LIMIT_VARIABLE, limit);
+                template = compile(api + "|nested|" + map.userField + "|" + map.userIdentifierArg + "|"
+                                + map.targetField + "|" + constraint + "|" + fields,
+                        key -> compileGitHubNestedTemplate(key, map, constrained, fields));
+            }
+
+        } else if ("COUNTRIES".equals(api)) {
+            if (map.targetField == null || map.userIdentifierArg == null) {
+                LOG.error("No ontology mapping for Countries target: {}", response.getTarget());
+                return null;
+            }
+            // e.g.: query($code: ID!) { continent(code: $code) { name } }
+            variables.put(map.userIdentifierArg, identifier);
+            template = compile(api + "|" + map.targetField + "|" + map.userIdentifierArg + "|" + fields,
+                    key -> compileRootFieldsTemplate(key, api, map.targetField, map.userIdentifierArg, fields));
+
+        } else {
+            LOG.error("Unknown API: {}", api);
+            return null;
+        }
+
+        return new PreparedQuery(api, template, variables);
+    }
+
+    /**
+     * Field list in canonical order, so "name,url" and "url,name" share one template and one query cache key.
+     * Defaults to "name" when the NLP gave no fields.
+     */
+    private List<String> sortedDistinctFields(List<String> fields) {
+        if (fields == null) {
+            return List.of("name");
+        }
+        List<String> canonical = fields.stream()
+                .filter(Objects::nonNull)
+                .map(String::trim)
+                .filter(f -> !f.isEmpty())
+                .distinct()
+                .sorted()
+                .toList();
+        return canonical.isEmpty() ? List.of("name") : canonical;
+    }
+
+    private CompiledTemplate compile(String shapeKey, Function<String, CompiledTemplate> compiler) {
+        return templates.get(shapeKey, key -> {
+            CompiledTemplate compiled = compiler.apply(key);
+            LOG.debug("Compiled GraphQL template for shape {}:\n{}", key, compiled.document);
+            return compiled;
+        });
+    }
+
+    /**
+     * Single-level query: rootField(identifierArg: $identifierArg) { fields }
+     */
+    private CompiledTemplate compileRootFieldsTemplate(String shapeKey, String api, String rootField,
+                                                       String identifierArg, List<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rootField)
+                .append("(").append(identifierArg).append(": $").append(identifierArg).append(") {\n");
+        for (String f : fields) {
+            sb.append("    ").append(sanitizeField(f)).append("\n");
+        }
+        sb.append("  }");
+
+        Map<String, String> variableTypes = new LinkedHashMap<>();
+        variableTypes.put(identifierArg, IDENTIFIER_TYPES.get(api));
+        return new CompiledTemplate(shapeKey, rootField, variableTypes, sb.toString());
+    }
+
+    /**
+     * GitHub multi-level query (repositories, issues, etc.) with the limit as a variable.
+     */
+    private CompiledTemplate compileGitHubNestedTemplate(String shapeKey, OntologyMapping map,
+                                                         boolean constrained, List<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(map.userField)
+                .append("(").append(map.userIdentifierArg).append(": $").append(map.userIdentifierArg).append(") {\n");
+
+        sb.append("    ").append(map.targetField).append("(");
+        if (constrained) {
+            sb.append(map.constraintArgumentField) // e.g. orderBy
+                    .append(": { field: ")
+                    .append(map.constraintOrderingField)
+                    .append(", direction: ")
+                    .append(map.constraintDirection)
+                    .append("}, ");
+        }
+        sb.append(LIMIT_VARIABLE).append(": $").append(LIMIT_VARIABLE).append(") {\n");
+        sb.append("      nodes {\n");
+        for (String f : fields) {
+            sb.append("        ").append(sanitizeField(f)).append("\n");
+        }
+        sb.append("      }\n");
+        sb.append("    }\n");
+        sb.append("  }");
+
+        Map<String, String> variableTypes = new LinkedHashMap<>();
+        variableTypes.put(map.userIdentifierArg, IDENTIFIER_TYPES.get("GITHUB"));
+        variableTypes.put(LIMIT_VARIABLE, "Int!");
+        return new CompiledTemplate(shapeKey, map.userField, variableTypes, sb.toString());
+    }
+
+    /**
+     * Field names come from the NLP output, keep them from breaking the document.
+     */
+    private String sanitizeField(String input) {
+        if (input == null) return "";
+        return input
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("'", "");
+    }
+
+    /**
+     * A compiled query shape: variable declarations plus the root selection referencing them.
+     */
+    public static class CompiledTemplate {
+        public final String shapeKey;
+        public final String rootField;
+        public final Map<String, String> variableTypes;
+        public final String selection;
+        public final String document;
+
+        CompiledTemplate(String shapeKey, String rootField, Map<String, String> variableTypes, String selection) {
+            this.shapeKey = shapeKey;
+            this.rootField = rootField;
+            this.variableTypes = Collections.unmodifiableMap(variableTypes);
+            this.selection = selection;
+
+            StringBuilder sb = new StringBuilder("query(");
+            String separator = "";
+            for (Map.Entry<String, String> variable : variableTypes.entrySet()) {
+                sb.append(separator).append("$").append(variable.getKey()).append(": ").append(variable.getValue());
+                separator = ", ";
+            }
+            sb.append(") {\n  ").append(selection).append("\n}\n");
+            this.document = sb.toString();
+        }
+    }
+
+    /**
+     * A compiled template bound to the variables of one request.
+     */
+    public static class PreparedQuery {
+        public final String api;
+        public final CompiledTemplate template;
+        public final Map<String, Object> variables;
+
+        PreparedQuery(String api, CompiledTemplate template, Map<String, Object> variables) {
+            this.api = api;
+            this.template = template;
+            this.variables = Collections.unmodifiableMap(variables);
+        }
+
+        /**
+         * Stable key identifying the upstream request: the query shape plus its variables in sorted order.
+         */
+        public String canonicalKey() {
+            return template.shapeKey + "|" + new TreeMap<>(variables);
+        }
+    }
+}
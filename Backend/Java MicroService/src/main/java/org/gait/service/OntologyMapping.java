@@ -0,0 +1,19 @@
+package org.gait.service;
+
+/**
+ * Simple container for the ontology mappings needed to build a GraphQL query.
+ */
+class OntologyMapping {
+    // For GitHub
+    String userField;             // e.g. "user"
+    String userIdentifierArg;     // e.g. "login"
+
+    // For "repositories", "issues", "country", "continent", etc.
+    String targetField;           // e.g. "repositories" or "continent"
+    String targetGraphQLType;     // e.g. "Continent"
+
+    // For constraints like "most starred"
+    String constraintArgumentField;  // e.g. "orderBy"
+    String constraintOrderingField;  // e.g. "STARGAZERS"
+    String constraintDirection;      // e.g. "DESC"
+}
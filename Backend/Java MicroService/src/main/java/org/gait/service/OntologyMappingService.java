@@ -0,0 +1,214 @@
+package org.gait.service;
+
+import lombok.RequiredArgsConstructor;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.gait.dto.NLPResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the GraphQL ontology mappings (GitHub + Countries TTL files) in an in-memory index
+ * keyed by concept label, so building a query needs no round trip to Blazegraph.
+ * Blazegraph only receives a published copy of the ontology.
+ */
+@Service
+@RequiredArgsConstructor
+public class OntologyMappingService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OntologyMappingService.class);
+
+    private static final String EX = "http://example.org/ontology#";
+
+    private final BlazegraphClient blazegraphClient;
+    private final ResourceLoader resourceLoader;
+
+    /**
+     * Mapping files to index; any Spring resource location (classpath:, file:) is accepted,
+     * so an edited copy on disk can be picked up with a reload.
+     */
+    @Value("${ontology.mapping.locations:classpath:ontology/graphQLOntology_github.ttl,classpath:ontology/graphQLOntology_countries.ttl}")
+    private String[] mappingLocations;
+
+    /**
+     * Label -> concept index, swapped atomically on reload.
+     */
+    private volatile Map<String, Concept> conceptsByLabel = Map.of();
+
+    /**
+     * Load the mapping files at startup, index them and publish them to Blazegraph.
+     */
+    @PostConstruct
+    public void loadOntologies() {
+        try {
+            reload();
+        } catch (Exception e) {
+            // Keep the service up; mappings can be fixed and reloaded via POST /admin/ontology/reload
+            LOG.error("Could not load ontology mappings: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Re-reads all mapping files and replaces the index. If a file is missing or cannot be read
+     * or parsed, the current index is kept and nothing is published.
+     *
+     * @return the number of indexed concepts
+     */
+    public synchronized int reload() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (String location : mappingLocations) {
+            files.put(location.trim(), readTtl(location.trim()));
+        }
+
+        Map<String, Concept> index = new HashMap<>();
+        files.forEach((location, ttl) -> indexConcepts(location, ttl, index));
+        conceptsByLabel = Map.copyOf(index);
+        LOG.info("Indexed {} ontology concepts from {} mapping files", index.size(), files.size());
+
+        files.forEach(this::publishToBlazegraph);
+        return index.size();
+    }
+
+    /**
+     * Resolves the mappings needed to build the GraphQL query, depending on the API (GitHub vs. Countries).
+     * Returns an empty mapping when a required concept is not in the ontology.
+     */
+    public OntologyMapping lookup(NLPResponse response) {
+        String api = (response.getApi() != null) ? response.getApi().toUpperCase() : "";
+        String targetLabel = (response.getTarget() != null) ? response.getTarget().toLowerCase() : "";
+        String constraintLabel = "";
+        if (response.getConstraints() != null && !response.getConstraints().isEmpty()) {
+            constraintLabel = response.getConstraints().get(0).toLowerCase();
+        }
+
+        Map<String, Concept> concepts = conceptsByLabel;
+        OntologyMapping map = new OntologyMapping();
+
+        if ("GITHUB".equals(api)) {
+            Concept user = concepts.get("user");
+            Concept target = concepts.get(targetLabel);
+            if (user == null || user.field == null || user.identifierArgument == null
+                    || target == null || target.field == null) {
+                return map;
+            }
+            map.userField = user.field;
+            map.userIdentifierArg = user.identifierArgument;
+            map.targetField = target.field;
+
+            Concept constraint = concepts.get(constraintLabel);
+            if (constraint != null && constraint.argumentField != null
+                    && constraint.orderingField != null && constraint.defaultDirection != null) {
+                map.constraintArgumentField = constraint.argumentField;
+                map.constraintOrderingField = constraint.orderingField;
+                map.constraintDirection = constraint.defaultDirection;
+            }
+
+        } else if ("COUNTRIES".equals(api)) {
+            Concept target = concepts.get(targetLabel);
+            if (target != null && target.graphQLType != null
+                    && target.field != null && target.identifierArgument != null) {
+                map.targetField = target.field;
+                map.targetGraphQLType = target.graphQLType;
+                map.userIdentifierArg = target.identifierArgument;
+            }
+
+        } else {
+            LOG.error("No ontology mappings for API: {}", response.getApi());
+        }
+        return map;
+    }
+
+    private byte[] readTtl(String location) {
+        org.springframework.core.io.Resource ttlResource = resourceLoader.getResource(location);
+        if (!ttlResource.exists()) {
+            throw new RuntimeException("Ontology file not found: " + location);
+        }
+        try (InputStream in = ttlResource.getInputStream()) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read ontology file " + location + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds every labelled rdfs:Class of the file to the index.
+     */
+    private void indexConcepts(String location, byte[] ttl, Map<String, Concept> index) {
+        Model model = ModelFactory.createDefaultModel();
+        RDFDataMgr.read(model, new ByteArrayInputStream(ttl), Lang.TURTLE);
+
+        model.listSubjectsWithProperty(RDF.type, RDFS.Class).forEachRemaining(concept -> {
+            String label = literal(concept, RDFS.label.getURI());
+            if (label == null) {
+                return;
+            }
+            Concept previous = index.putIfAbsent(label, new Concept(
+                    literal(concept, EX + "mapsToField"),
+                    literal(concept, EX + "identifierArgument"),
+                    literal(concept, EX + "mapsToGraphQLType"),
+                    literal(concept, EX + "mapsToArgumentField"),
+                    literal(concept, EX + "mapsToOrderingField"),
+                    literal(concept, EX + "defaultDirection")));
+            if (previous != null) {
+                LOG.warn("Duplicate ontology label '{}' in {}, keeping the first definition", label, location);
+            }
+        });
+    }
+
+    private String literal(Resource subject, String propertyUri) {
+        Statement st = subject.getProperty(subject.getModel().createProperty(propertyUri));
+        return (st != null && st.getObject().isLiteral()) ? st.getString() : null;
+    }
+
+    /**
+     * POSTs a TTL file to Blazegraph's default graph, which keeps the published copy of the ontology.
+     */
+    private void publishToBlazegraph(String location, byte[] ttl) {
+        try {
+            blazegraphClient.loadTurtle("ontology.publish", new String(ttl, StandardCharsets.UTF_8));
+            LOG.info("Loaded {} into Blazegraph successfully.", location);
+        } catch (Exception e) {
+            LOG.error("Could not load TTL {}: {}", location, e.getMessage());
+        }
+    }
+
+    /**
+     * Mapping properties of one ontology concept; absent properties are null.
+     */
+    private static class Concept {
+        final String field;
+        final String identifierArgument;
+        final String graphQLType;
+        final String argumentField;
+        final String orderingField;
+        final String defaultDirection;
+
+        Concept(String field, String identifierArgument, String graphQLType,
+                String argumentField, String orderingField, String defaultDirection) {
+            this.field = field;
+            this.identifierArgument = identifierArgument;
+            this.graphQLType = graphQLType;
+            this.argumentField = argumentField;
+            this.orderingField = orderingField;
+            this.defaultDirection = defaultDirection;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.gait.service;
+
+/**
+ * Thrown when a request or cache miss would exceed the user's token bucket; answered with 429.
+ */
+public class RateLimitExceededException extends RuntimeException {
+
+    private final RateLimitService.Quota quota;
+
+    public RateLimitExceededException(RateLimitService.Quota quota) {
+        super("Rate limit exceeded, retry after " + quota.retryAfterSeconds + "s");
+        this.quota = quota;
+    }
+
+    public RateLimitService.Quota getQuota() {
+        return quota;
+    }
+}
@@ -0,0 +1,311 @@
+package org.gait.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.gait.database.entity.UserEntity;
+import org.gait.dto.Api;
+import org.gait.dto.RoleName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Token-bucket quotas for /client/use-api and /client/use-api/batch. Every prompt takes the hit cost from the
+ * user's bucket up front (a batch all at once); a cache miss additionally takes the miss cost from the user's
+ * bucket for the API the prompt resolved to, before the upstream call, so one user cannot use up the shared
+ * GraphQL quota.
+ * Capacity and refill rate are configured per role (rate-limit.&lt;role&gt;.*, falling back to rate-limit.default.*).
+ *
+ * Buckets live in memory and are updated lock-free (compare-and-set), which limits each replica on its own.
+ * With rate-limit.store=postgres they are kept in the rate_limit_bucket table instead and updated by one
+ * conditional UPSERT per request, so the limits hold across replicas.
+ */
+@Service
+@RequiredArgsConstructor
+public class RateLimitService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimitService.class);
+
+    private static final String POSTGRES_STORE = "postgres";
+
+    /**
+     * Takes {@code cost} tokens if the refilled bucket holds at least that many; returns no row otherwise.
+     * The row lock taken by ON CONFLICT makes the check and the update atomic across replicas.
+     */
+    private static final String CONSUME_SQL =
+            "INSERT INTO rate_limit_bucket (bucket_key, tokens, refilled_at) VALUES (?, ?, LOCALTIMESTAMP) " +
+                    "ON CONFLICT (bucket_key) DO UPDATE SET " +
+                    "tokens = LEAST(?, rate_limit_bucket.tokens + EXTRACT(EPOCH FROM LOCALTIMESTAMP - rate_limit_bucket.refilled_at) * ?) - ?, " +
+                    "refilled_at = LOCALTIMESTAMP " +
+                    "WHERE LEAST(?, rate_limit_bucket.tokens + EXTRACT(EPOCH FROM LOCALTIMESTAMP - rate_limit_bucket.refilled_at) * ?) >= ? " +
+                    "RETURNING tokens";
+
+    private static final String AVAILABLE_SQL =
+            "SELECT LEAST(?, tokens + EXTRACT(EPOCH FROM LOCALTIMESTAMP - refilled_at) * ?) " +
+                    "FROM rate_limit_bucket WHERE bucket_key = ?";
+
+    private static final String PURGE_SQL =
+            "DELETE FROM rate_limit_bucket WHERE refilled_at < LOCALTIMESTAMP - make_interval(mins => ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * memory (per replica) or postgres (shared by all replicas).
+     */
+    @Value("${rate-limit.store:memory}")
+    private String store;
+
+    @Value("${rate-limit.cost.hit:1}")
+    private double hitCost;
+
+    @Value("${rate-limit.cost.miss:5}")
+    private double missCost;
+
+    /**
+     * Buckets not used for this long are dropped; it should exceed the time a bucket takes to refill.
+     */
+    @Value("${rate-limit.idle-expiration.minutes:60}")
+    private long idleExpirationMinutes;
+
+    @Value("${rate-limit.max-buckets:100000}")
+    private long maxBuckets;
+
+    private final Map<RoleName, Limit> userLimits = new EnumMap<>(RoleName.class);
+    private final Map<RoleName, Limit> apiLimits = new EnumMap<>(RoleName.class);
+
+    private Cache<String, AtomicReference<Bucket>> buckets;
+
+    @PostConstruct
+    public void init() {
+        for (RoleName role : RoleName.values()) {
+            userLimits.put(role, limit(role, ""));
+            apiLimits.put(role, limit(role, "api."));
+        }
+        buckets = Caffeine.newBuilder()
+                .maximumSize(maxBuckets)
+                .expireAfterAccess(Duration.ofMinutes(idleExpirationMinutes))
+                .build();
+        LOG.info("Rate limiting {} ({} store), limits per user: {}, per user and API: {}",
+                enabled ? "enabled" : "disabled", store, userLimits, apiLimits);
+    }
+
+    /**
+     * Reads rate-limit.&lt;role&gt;.&lt;scope&gt;capacity / refill-per-second, defaulting to rate-limit.default.*.
+     */
+    private Limit limit(RoleName role, String scope) {
+        String roleKey = "rate-limit." + role.name().toLowerCase(Locale.ROOT) + "." + scope;
+        String defaultKey = "rate-limit.default." + scope;
+        double capacity = environment.getProperty(roleKey + "capacity", Double.class,
+                environment.getProperty(defaultKey + "capacity", Double.class, 60.0));
+        double refillPerSecond = environment.getProperty(roleKey + "refill-per-second", Double.class,
+                environment.getProperty(defaultKey + "refill-per-second", Double.class, 1.0));
+        return new Limit(capacity, refillPerSecond);
+    }
+
+    /**
+     * Charges the hit cost for a request, before the cache lookup.
+     *
+     * @return the state of the user's bucket, for the rate-limit response headers; null if rate limiting is off
+     * @throws RateLimitExceededException if the bucket does not hold enough tokens
+     */
+    public Quota consumeRequest(UserEntity user) {
+        return consumeRequests(user, 1);
+    }
+
+    /**
+     * The most prompts one request of the user can be charged for, i.e. what a full bucket covers;
+     * a larger batch could never be admitted. Unbounded if rate limiting is off.
+     */
+    public int maxPromptsPerRequest(UserEntity user) {
+        if (!enabled || hitCost <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.floor(userLimits.get(roleOf(user)).capacity / hitCost);
+    }
+
+    /**
+     * Charges the hit cost of {@code prompts} prompts at once, e.g. for a batch request; all or nothing.
+     * Callers keep {@code prompts} within {@link #maxPromptsPerRequest(UserEntity)}.
+     *
+     * @return the state of the user's bucket, for the rate-limit response headers; null if rate limiting is off
+     * @throws RateLimitExceededException if the bucket does not hold enough tokens for every prompt
+     */
+    public Quota consumeRequests(UserEntity user, int prompts) {
+        if (!enabled) {
+            return null;
+        }
+        return consume("user:" + user.getId(), userLimits.get(roleOf(user)), hitCost * prompts, "request");
+    }
+
+    /**
+     * Charges the miss cost for a prompt that resolved to {@code api} and missed the cache, before the upstream call.
+     *
+     * @throws RateLimitExceededException if the user's bucket for the API does not hold enough tokens
+     */
+    public void consumeMiss(UserEntity user, Api api) {
+        if (!enabled) {
+            return;
+        }
+        consume("user:" + user.getId() + ":api:" + api, apiLimits.get(roleOf(user)), missCost, "miss");
+    }
+
+    private Quota consume(String key, Limit limit, double cost, String kind) {
+        Quota quota = POSTGRES_STORE.equalsIgnoreCase(store)
+                ? consumeInPostgres(key, limit, cost)
+                : consumeInMemory(key, limit, cost);
+        if (!quota.allowed) {
+            meterRegistry.counter("client.rate-limit.rejected", "kind", kind).increment();
+            LOG.info("Rate limit exceeded for {} ({}), retry after {}s", key, kind, quota.retryAfterSeconds);
+            throw new RateLimitExceededException(quota);
+        }
+        return quota;
+    }
+
+    /**
+     * Refills the bucket for the time elapsed since its last update and takes the cost, retrying on contention.
+     */
+    private Quota consumeInMemory(String key, Limit limit, double cost) {
+        if (cost > limit.capacity) {
+            return Quota.denied(limit, limit.capacity, cost);
+        }
+        AtomicReference<Bucket> ref = buckets.get(key, k -> new AtomicReference<>(new Bucket(limit.capacity, System.nanoTime())));
+        while (true) {
+            Bucket current = ref.get();
+            long now = System.nanoTime();
+            double elapsedSeconds = Math.max(now - current.refilledAt, 0) / 1_000_000_000.0;
+            double available = Math.min(limit.capacity, current.tokens + elapsedSeconds * limit.refillPerSecond);
+            if (available < cost) {
+                return Quota.denied(limit, available, cost);
+            }
+            Bucket next = new Bucket(available - cost, now);
+            if (ref.compareAndSet(current, next)) {
+                return Quota.allowed(limit, next.tokens);
+            }
+        }
+    }
+
+    private Quota consumeInPostgres(String key, Limit limit, double cost) {
+        if (cost > limit.capacity) {
+            return Quota.denied(limit, limit.capacity, cost);
+        }
+        List<Double> remaining = jdbcTemplate.query(CONSUME_SQL, (rs, rowNum) -> rs.getDouble(1),
+                key, limit.capacity - cost,
+                limit.capacity, limit.refillPerSecond, cost,
+                limit.capacity, limit.refillPerSecond, cost);
+        if (!remaining.isEmpty()) {
+            return Quota.allowed(limit, remaining.get(0));
+        }
+        List<Double> available = jdbcTemplate.query(AVAILABLE_SQL, (rs, rowNum) -> rs.getDouble(1),
+                limit.capacity, limit.refillPerSecond, key);
+        return Quota.denied(limit, available.isEmpty() ? limit.capacity : available.get(0), cost);
+    }
+
+    /**
+     * Removes idle Postgres buckets; a removed bucket starts full again, as it would have refilled by now.
+     */
+    @Scheduled(fixedDelayString = "${rate-limit.purge-interval-ms:600000}")
+    public void purgeIdleBuckets() {
+        if (!enabled || !POSTGRES_STORE.equalsIgnoreCase(store)) {
+            return;
+        }
+        try {
+            int purged = jdbcTemplate.update(PURGE_SQL, (int) idleExpirationMinutes);
+            LOG.debug("Purged {} idle rate limit buckets", purged);
+        } catch (Exception e) {
+            LOG.error("Could not purge idle rate limit buckets: {}", e.getMessage());
+        }
+    }
+
+    private static RoleName roleOf(UserEntity user) {
+        return (user.getRole() != null && user.getRole().getRole() != null) ? user.getRole().getRole() : RoleName.CLIENT;
+    }
+
+    private static class Limit {
+        final double capacity;
+        final double refillPerSecond;
+
+        Limit(double capacity, double refillPerSecond) {
+            this.capacity = capacity;
+            this.refillPerSecond = refillPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return capacity + " tokens, " + refillPerSecond + "/s";
+        }
+    }
+
+    /**
+     * Immutable bucket state, replaced as a whole by compare-and-set.
+     */
+    private static class Bucket {
+        final double tokens;
+        final long refilledAt;
+
+        Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+    }
+
+    /**
+     * Outcome of a charge, as reported in the X-RateLimit-* and Retry-After headers.
+     */
+    public static class Quota {
+        public final boolean allowed;
+        public final long limit;
+        public final long remaining;
+        /**
+         * Seconds until the bucket is full again.
+         */
+        public final long resetSeconds;
+        /**
+         * Seconds until the bucket holds enough tokens for the denied charge; 0 if allowed.
+         */
+        public final long retryAfterSeconds;
+
+        private Quota(boolean allowed, long limit, long remaining, long resetSeconds, long retryAfterSeconds) {
+            this.allowed = allowed;
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetSeconds = resetSeconds;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Quota allowed(Limit limit, double tokens) {
+            return new Quota(true, (long) limit.capacity, (long) Math.floor(tokens),
+                    secondsToRefill(limit, limit.capacity - tokens), 0);
+        }
+
+        static Quota denied(Limit limit, double tokens, double cost) {
+            return new Quota(false, (long) limit.capacity, (long) Math.floor(tokens),
+                    secondsToRefill(limit, limit.capacity - tokens), Math.max(secondsToRefill(limit, cost - tokens), 1));
+        }
+
+        private static long secondsToRefill(Limit limit, double tokens) {
+            if (tokens <= 0 || limit.refillPerSecond <= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(tokens / limit.refillPerSecond);
+        }
+    }
+}
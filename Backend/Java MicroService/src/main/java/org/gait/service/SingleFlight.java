@@ -0,0 +1,66 @@
+package org.gait.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent work for the same key: the first caller (the leader) runs it,
+ * every caller that arrives while it is in flight waits for and shares the leader's result or error.
+ */
+@Component
+public class SingleFlight {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+    /**
+     * How long a waiter blocks on the leader before giving up.
+     */
+    @Value("${client.single-flight.timeout.seconds:30}")
+    private long timeoutSeconds;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> work) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, call);
+
+        if (existing == null) {
+            // Leader: do the work and publish the outcome to the waiters
+            try {
+                T result = work.get();
+                call.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, call);
+            }
+        }
+
+        LOG.debug("Joining in-flight call for key={}", key);
+        try {
+            return (T) existing.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new RuntimeException("In-flight call failed for key: " + key, e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("Timed out waiting for in-flight call for key: " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for in-flight call for key: " + key, e);
+        }
+    }
+}
@@ -1,38 +1,93 @@
 package org.gait.service;
 
-import org.apache.jena.query.*;
-import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
-import org.apache.jena.sparql.exec.http.QuerySendMode;
-import org.apache.jena.update.UpdateExecutionFactory;
-import org.apache.jena.update.UpdateFactory;
-import org.apache.jena.update.UpdateProcessor;
-import org.apache.jena.update.UpdateRequest;
+import lombok.RequiredArgsConstructor;
+import org.apache.jena.query.QuerySolution;
 import org.gait.vocabulary.UserHistoryOntology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 
 @Service
+@RequiredArgsConstructor
 public class UserHistoryService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(UserHistoryService.class);
+
     // Prefixes for our user history ontology and XSD.
     private static final String PREFIXES = "PREFIX uh: <" + UserHistoryOntology.NS + "> " +
             "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ";
-    @Value("${blazegraph.endpoint:http://localhost:9999/blazegraph/namespace/kb/sparql}")
-    private String blazegraphEndpoint;
+
+    private final BlazegraphClient blazegraphClient;
+    private final BlazegraphWriteBehind writeBehind;
+
+    /**
+     * Page size of the history listing when the caller does not ask for one.
+     */
+    @Value("${history.page-size.default:20}")
+    private int defaultPageSize;
+
+    @Value("${history.page-size.max:100}")
+    private int maxPageSize;
+
+    /**
+     * Keep each user's history in its own named graph, so reads and deletes only touch that user's
+     * triples. Needs a quads-mode Blazegraph namespace (the default "kb" is one). Off by default: once on,
+     * reads only see named graphs, so records still in the default graph are moved at startup with
+     * {@link #migrateToNamedGraphs()}.
+     */
+    @Value("${history.named-graphs.enabled:false}")
+    private boolean namedGraphs;
+
+    /**
+     * With named graphs enabled, moves any history still in the default graph (written before the switch)
+     * into its user's graph before requests are served, so no user's history disappears.
+     */
+    @PostConstruct
+    public void migrateOnStartup() {
+        if (!namedGraphs) {
+            return;
+        }
+        try {
+            int users = migrateToNamedGraphs();
+            LOG.info("Moved history of {} users into their named graphs at startup", users);
+        } catch (Exception e) {
+            LOG.error("Could not move history into named graphs at startup, retry with " +
+                    "POST /admin/history/migrate-named-graphs: {}", e.getMessage());
+        }
+    }
 
     /**
-     * Generates a unique URI for a history record using the user ID and prompt.
+     * Named graph holding the history records of one user.
      */
-    public String generateHistoryURI(String userId, String prompt) {
-        String base = userId + "_" + prompt;
+    public String generateHistoryGraphURI(String userId) {
+        return "urn:userhistory:graph:" + URLEncoder.encode(userId, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Wraps triple patterns or data in the user's named graph, when named graphs are enabled.
+     */
+    private String inUserGraph(String userId, String patterns) {
+        return namedGraphs ? "GRAPH <" + generateHistoryGraphURI(userId) + "> { " + patterns + "} " : patterns;
+    }
+
+    /**
+     * Generates a unique URI for a history record using the user ID, prompt and creation timestamp,
+     * so asking the same prompt again adds a record instead of merging into the previous one.
+     */
+    public String generateHistoryURI(String userId, String prompt, String timestamp) {
+        String base = userId + "_" + prompt + "_" + timestamp;
         return "urn:userhistory:" + URLEncoder.encode(base, StandardCharsets.UTF_8);
     }
 
@@ -46,63 +101,259 @@ public class UserHistoryService {
 
     /**
      * Saves a user history record in Blazegraph with userId, prompt, GraphQL response, and creation timestamp.
+     * The record is written in the background, batched with other pending writes.
      */
     public void saveUserHistory(String userId, String prompt, String response) {
-        String historyURI = generateHistoryURI(userId, prompt);
+        String timestamp = Instant.now().toString(); // ISO-8601 format
+        String historyURI = generateHistoryURI(userId, prompt, timestamp);
         String safeUserId = sanitize(userId);
 //        String safePrompt = sanitize(prompt);
         String safeResponse = sanitize(response);
-        String timestamp = Instant.now().toString(); // ISO-8601 format
 
-        String updateString = PREFIXES +
-                "INSERT DATA { " +
+        String record =
                 "  <" + historyURI + "> a <" + UserHistoryOntology.UserHistory + "> ; " +
                 "    <" + UserHistoryOntology.userId + "> \"" + safeUserId + "\" ; " +
                 "    <" + UserHistoryOntology.prompt + "> \"" + prompt + "\" ; " +
                 "    <" + UserHistoryOntology.graphqlResponse + "> \"" + safeResponse + "\" ; " +
-                "    <" + UserHistoryOntology.createdAt + "> \"" + timestamp + "\"^^xsd:dateTime ." +
-                "}";
-        UpdateRequest updateRequest = UpdateFactory.create(updateString);
-        UpdateProcessor processor = UpdateExecutionFactory.createRemoteForm(updateRequest, blazegraphEndpoint);
-        processor.execute();
+                "    <" + UserHistoryOntology.createdAt + "> \"" + timestamp + "\"^^xsd:dateTime . ";
+        String updateString = PREFIXES + "INSERT DATA { " + inUserGraph(userId, record) + "}";
+        writeBehind.submit("history.save", updateString);
     }
 
     /**
-     * Retrieves all history records for a given user ID.
+     * Saves the history records of a batch request with one update.
+     * Prompts are stored URL-encoded, the form in which single prompts arrive, so listings decode them the same way.
+     */
+    public void saveUserHistories(String userId, Map<String, String> responsesByPrompt) {
+        if (responsesByPrompt.isEmpty()) {
+            return;
+        }
+        String safeUserId = sanitize(userId);
+        String timestamp = Instant.now().toString(); // ISO-8601 format
+
+        StringBuilder records = new StringBuilder();
+        responsesByPrompt.forEach((prompt, response) -> records
+                .append("  <").append(generateHistoryURI(userId, prompt, timestamp)).append("> a <").append(UserHistoryOntology.UserHistory).append("> ; ")
+                .append("    <").append(UserHistoryOntology.userId).append("> \"").append(safeUserId).append("\" ; ")
+                .append("    <").append(UserHistoryOntology.prompt).append("> \"").append(URLEncoder.encode(prompt, StandardCharsets.UTF_8)).append("\" ; ")
+                .append("    <").append(UserHistoryOntology.graphqlResponse).append("> \"").append(sanitize(response)).append("\" ; ")
+                .append("    <").append(UserHistoryOntology.createdAt).append("> \"").append(timestamp).append("\"^^xsd:dateTime . "));
+
+        String updateString = PREFIXES + "INSERT DATA { " + inUserGraph(userId, records.toString()) + "}";
+        writeBehind.submit("history.save.bulk", updateString);
+    }
+
+    /**
+     * Retrieves all history records for a given user ID, oldest first.
      */
     public List<UserHistoryEntry> getHistoryForUser(String userId) {
         String safeUserId = sanitize(userId);
+        // Bound userId literal instead of FILTER(str(?uid) = ...), so Blazegraph can use its index
         String queryString = PREFIXES +
                 "SELECT ?s ?prompt ?graphqlResponse ?createdAt WHERE { " +
-                "  ?s a <" + UserHistoryOntology.UserHistory + "> ; " +
-                "     <" + UserHistoryOntology.userId + "> ?uid ; " +
-                "     <" + UserHistoryOntology.prompt + "> ?prompt ; " +
-                "     <" + UserHistoryOntology.graphqlResponse + "> ?graphqlResponse ; " +
-                "     <" + UserHistoryOntology.createdAt + "> ?createdAt . " +
-                "  FILTER(str(?uid) = \"" + safeUserId + "\")" +
-                "}";
-        Query query = QueryFactory.create(queryString);
-        List<UserHistoryEntry> entries = new ArrayList<>();
-        try (QueryExecution qexec = QueryExecutionHTTP.newBuilder()
-                .endpoint(blazegraphEndpoint)
-                .query(query)
-                .sendMode(QuerySendMode.asPost)
-                .build()) {
-            ResultSet results = qexec.execSelect();
+                inUserGraph(userId,
+                        "  ?s <" + UserHistoryOntology.userId + "> \"" + safeUserId + "\" ; " +
+                        "     a <" + UserHistoryOntology.UserHistory + "> ; " +
+                        "     <" + UserHistoryOntology.prompt + "> ?prompt ; " +
+                        "     <" + UserHistoryOntology.graphqlResponse + "> ?graphqlResponse ; " +
+                        "     <" + UserHistoryOntology.createdAt + "> ?createdAt . ") +
+                "} ORDER BY ?createdAt ?s";
+        return blazegraphClient.select("history.list", queryString, results -> {
+            List<UserHistoryEntry> found = new ArrayList<>();
             while (results.hasNext()) {
                 QuerySolution sol = results.nextSolution();
-                String encodedPrompt = sol.getLiteral("prompt").getString();
-                String prompt = URLDecoder.decode(encodedPrompt, StandardCharsets.UTF_8);
-                if (prompt.endsWith("=")) {
-                    prompt = prompt.substring(0, prompt.length() - 1);
-                }
+                String prompt = decodePrompt(sol.getLiteral("prompt").getString());
                 String response = sol.getLiteral("graphqlResponse").getString();
                 String createdAt = sol.getLiteral("createdAt").getString();
-                entries.add(new UserHistoryEntry(userId, prompt, response, createdAt));
+                found.add(new UserHistoryEntry(userId, prompt, response, createdAt));
+            }
+            return found;
+        });
+    }
+
+    /**
+     * Retrieves one page of a user's history, newest first, without the GraphQL responses.
+     * Pages are keyed by the last record of the previous page (its createdAt and URI), so later pages
+     * cost the same as the first and do not shift when new records are added.
+     *
+     * @param cursor  nextCursor of the previous page, or null for the first page
+     * @param size    records per page, defaults to history.page-size.default and is capped at history.page-size.max
+     */
+    public HistoryPage getHistoryPage(String userId, String cursor, Integer size) {
+        int pageSize = (size == null || size <= 0) ? defaultPageSize : Math.min(size, maxPageSize);
+        String safeUserId = sanitize(userId);
+
+        String keyset = "";
+        if (cursor != null && !cursor.isEmpty()) {
+            String[] position = decodeCursor(cursor);
+            String createdAt = "\"" + position[0] + "\"^^xsd:dateTime";
+            keyset = "  FILTER(?createdAt < " + createdAt +
+                    " || (?createdAt = " + createdAt + " && STR(?s) < \"" + position[1] + "\")) ";
+        }
+
+        // One extra row tells whether there is a next page
+        String queryString = PREFIXES +
+                "SELECT ?s ?prompt ?createdAt WHERE { " +
+                inUserGraph(userId,
+                        "  ?s <" + UserHistoryOntology.userId + "> \"" + safeUserId + "\" ; " +
+                        "     a <" + UserHistoryOntology.UserHistory + "> ; " +
+                        "     <" + UserHistoryOntology.prompt + "> ?prompt ; " +
+                        "     <" + UserHistoryOntology.createdAt + "> ?createdAt . " +
+                        keyset) +
+                "} ORDER BY DESC(?createdAt) DESC(?s) LIMIT " + (pageSize + 1);
+
+        List<HistoryListItem> items = blazegraphClient.select("history.page", queryString, results -> {
+            List<HistoryListItem> found = new ArrayList<>();
+            while (results.hasNext()) {
+                QuerySolution sol = results.nextSolution();
+                found.add(new HistoryListItem(sol.getResource("s").getURI(),
+                        decodePrompt(sol.getLiteral("prompt").getString()),
+                        sol.getLiteral("createdAt").getString()));
+            }
+            return found;
+        });
+
+        String nextCursor = null;
+        if (items.size() > pageSize) {
+            items = items.subList(0, pageSize);
+            HistoryListItem last = items.get(pageSize - 1);
+            nextCursor = encodeCursor(last.createdAt, last.id);
+        }
+        return new HistoryPage(items, nextCursor);
+    }
+
+    /**
+     * Retrieves the GraphQL response of one history record, or null if the record does not belong to the user.
+     */
+    public String getHistoryResponse(String userId, String historyId) {
+        if (historyId == null || !historyId.startsWith("urn:userhistory:") || historyId.contains(">")) {
+            return null;
+        }
+        String queryString = PREFIXES +
+                "SELECT ?graphqlResponse WHERE { " +
+                inUserGraph(userId,
+                        "  <" + historyId + "> <" + UserHistoryOntology.userId + "> \"" + sanitize(userId) + "\" ; " +
+                        "     <" + UserHistoryOntology.graphqlResponse + "> ?graphqlResponse . ") +
+                "} LIMIT 1";
+        return blazegraphClient.select("history.response", queryString,
+                results -> results.hasNext() ? results.nextSolution().getLiteral("graphqlResponse").getString() : null);
+    }
+
+    /**
+     * Deletes all history records of a user: a single graph drop with named graphs,
+     * otherwise a delete of the user's records from the default graph.
+     */
+    public void deleteHistoryForUser(String userId) {
+        String updateString = namedGraphs
+                ? "DROP SILENT GRAPH <" + generateHistoryGraphURI(userId) + ">"
+                : PREFIXES +
+                "DELETE { ?s ?p ?o } WHERE { " +
+                "  ?s <" + UserHistoryOntology.userId + "> \"" + sanitize(userId) + "\" ; " +
+                "     a <" + UserHistoryOntology.UserHistory + "> ; " +
+                "     ?p ?o . " +
+                "}";
+        writeBehind.submit("history.delete", updateString);
+    }
+
+    /**
+     * One-off migration: moves history records from the default graph into their user's named graph,
+     * one user per update, and returns the number of users migrated. Safe to run again.
+     */
+    public int migrateToNamedGraphs() {
+        if (!namedGraphs) {
+            throw new IllegalStateException("history.named-graphs.enabled is off, nothing to migrate to");
+        }
+        String usersQuery = PREFIXES +
+                "SELECT DISTINCT ?uid WHERE { " +
+                "  ?s a <" + UserHistoryOntology.UserHistory + "> ; " +
+                "     <" + UserHistoryOntology.userId + "> ?uid . " +
+                "}";
+        List<String> userIds = blazegraphClient.select("history.migrate.users", usersQuery, results -> {
+            List<String> found = new ArrayList<>();
+            while (results.hasNext()) {
+                found.add(results.nextSolution().getLiteral("uid").getString());
             }
+            return found;
+        });
+
+        for (String userId : userIds) {
+            String records =
+                    "  ?s <" + UserHistoryOntology.userId + "> \"" + sanitize(userId) + "\" ; " +
+                    "     a <" + UserHistoryOntology.UserHistory + "> ; " +
+                    "     ?p ?o . ";
+            // One DELETE/INSERT: the WHERE is matched once, then the default-graph copy is removed and the
+            // named-graph copy written. Blazegraph matches the default graph as the union of all graphs, so
+            // users migrated before are just rewritten into their own graph.
+            String updateString = PREFIXES +
+                    "DELETE { ?s ?p ?o } " +
+                    "INSERT { GRAPH <" + generateHistoryGraphURI(userId) + "> { ?s ?p ?o } } " +
+                    "WHERE { " + records + "}";
+            blazegraphClient.update("history.migrate", updateString);
+            LOG.info("Moved history of user {} into {}", userId, generateHistoryGraphURI(userId));
+        }
+        return userIds.size();
+    }
+
+    /**
+     * Prompts are stored URL-encoded; single prompts arrive form-encoded and may carry a trailing "=".
+     */
+    private String decodePrompt(String encodedPrompt) {
+        String prompt = URLDecoder.decode(encodedPrompt, StandardCharsets.UTF_8);
+        if (prompt.endsWith("=")) {
+            prompt = prompt.substring(0, prompt.length() - 1);
+        }
+        return prompt;
+    }
+
+    private String encodeCursor(String createdAt, String historyId) {
+        String position = createdAt + "|" + historyId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor was not produced by {@link #encodeCursor}
+     */
+    private String[] decodeCursor(String cursor) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 2);
+            Instant.parse(parts[0]);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid history cursor", e);
+        }
+        if (parts.length != 2 || !parts[1].startsWith("urn:userhistory:")
+                || parts[1].contains("\"") || parts[1].contains("\\")) {
+            throw new IllegalArgumentException("Invalid history cursor");
+        }
+        return parts;
+    }
+
+    /**
+     * One page of the history listing; nextCursor is null on the last page.
+     */
+    public static class HistoryPage {
+        public final List<HistoryListItem> items;
+        public final String nextCursor;
+
+        public HistoryPage(List<HistoryListItem> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * A history record without its GraphQL response, which is fetched by id when needed.
+     */
+    public static class HistoryListItem {
+        public final String id;
+        public final String prompt;
+        public final String createdAt;
+
+        public HistoryListItem(String id, String prompt, String createdAt) {
+            this.id = id;
+            this.prompt = prompt;
+            this.createdAt = createdAt;
         }
-        Collections.reverse(entries);
-        return entries;
     }
 
     /**
@@ -0,0 +1,28 @@
+package org.gait.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Digests used for cache keys and content checks.
+ */
+public final class Hashing {
+
+    private Hashing() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Lower-case hex SHA-256 of the UTF-8 bytes of {@code value}.
+     */
+    public static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -4,8 +4,12 @@ public final class CacheOntology {
     public static final String NS = "http://example.org/cache#";
     public static final String CachedEntry = NS + "CachedEntry";
     public static final String originalPrompt = NS + "originalPrompt";
+    public static final String canonicalQuery = NS + "canonicalQuery";
     public static final String hasGraphQLResult = NS + "hasGraphQLResult";
     public static final String createdAt = NS + "createdAt";
+    public static final String resultEncoding = NS + "resultEncoding";
+    public static final String resultSha256 = NS + "resultSha256";
+    public static final String resultSize = NS + "resultSize";
 
     private CacheOntology() {
         // Prevent instantiation.
@@ -0,0 +1,225 @@
+package org.gait.benchmark;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.vocabulary.RDF;
+import org.gait.service.CachedResultCodec;
+import org.gait.util.Hashing;
+import org.gait.vocabulary.CacheOntology;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size and decode cost of a cached GraphQL result stored as an escaped JSON literal vs. gzip+base64,
+ * and the store size and lookup latency that follow from it.
+ *
+ * The payloads mimic the GitHub repositories listing (nodes with name, description, url, stars) at
+ * the sizes the NLP limit produces. The first table reports the literal size and the time to encode on
+ * save and decode on every L2 read. The second loads the same entries in both formats into an in-memory
+ * Jena dataset standing in for Blazegraph, and reports the store size (N-Triples bytes) and the latency
+ * of BlazegraphCacheService's lookup: the SELECT, its JSON results as sent over the wire, and the decode
+ * with its SHA-256 check. Absolute numbers differ from a Blazegraph journal; the ratio between the
+ * formats is what to look at.
+ *
+ * Not a unit test; run it with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.gait.benchmark.CacheStorageFormatComparison -Dexec.classpathScope=test
+ * Optional argument: entries in the store (default 1000).
+ */
+public class CacheStorageFormatComparison {
+
+    private static final int ITERATIONS = 2000;
+    private static final int WARMUP_LOOKUPS = 200;
+
+    private static final String PREFIXES = "PREFIX cache: <" + CacheOntology.NS + "> ";
+
+    public static void main(String[] args) {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+
+        System.out.printf("%-8s %10s %10s %7s %10s %10s%n", "nodes", "plain B", "gzip B", "ratio", "encode us", "decode us");
+        for (int nodes : new int[]{1, 10, 50, 100}) {
+            String json = repositoriesResponse(nodes);
+            String plain = json.replace("\"", "\\\"");
+            String compressed = CachedResultCodec.encode(json);
+            String sha256 = Hashing.sha256Hex(json);
+
+            long[] encodeNanos = new long[ITERATIONS];
+            long[] decodeNanos = new long[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                CachedResultCodec.encode(json);
+                encodeNanos[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                String decoded = CachedResultCodec.decode(compressed, CachedResultCodec.GZIP_BASE64, sha256);
+                decodeNanos[i] = System.nanoTime() - start;
+                if (decoded == null || decoded.length() != json.length()) {
+                    throw new IllegalStateException("Round trip changed the payload");
+                }
+            }
+
+            int plainBytes = plain.getBytes(StandardCharsets.UTF_8).length;
+            int compressedBytes = compressed.length();
+            System.out.printf("%-8d %10d %10d %6.1fx %10d %10d%n", nodes, plainBytes, compressedBytes,
+                    (double) plainBytes / compressedBytes, medianMicros(encodeNanos), medianMicros(decodeNanos));
+        }
+
+        // Warm up the query engine and the JSON results path for both formats, so neither pays for the JIT
+        for (boolean compressed : new boolean[]{false, true}) {
+            Dataset store = DatasetFactory.createTxnMem();
+            load(store, entries, 50, compressed);
+            lookups(store, entries);
+        }
+
+        System.out.printf("%n%d entries per store%n", entries);
+        System.out.printf("%-8s %-7s %10s %14s %14s%n", "nodes", "format", "store KB", "lookup p50 us", "lookup p99 us");
+        for (int nodes : new int[]{10, 50, 100}) {
+            for (boolean compressed : new boolean[]{false, true}) {
+                Dataset store = DatasetFactory.createTxnMem();
+                load(store, entries, nodes, compressed);
+                long[] lookupNanos = lookups(store, entries);
+                System.out.printf("%-8d %-7s %10d %14d %14d%n", nodes, compressed ? "gzip" : "plain",
+                        storeBytes(store) / 1024, percentileMicros(lookupNanos, 0.50), percentileMicros(lookupNanos, 0.99));
+            }
+        }
+    }
+
+    /**
+     * The triples BlazegraphCacheService writes for each entry, in the plain or the compressed format.
+     */
+    private static void load(Dataset store, int entries, int nodes, boolean compressed) {
+        Resource cachedEntry = ResourceFactory.createResource(CacheOntology.CachedEntry);
+        Property originalPrompt = ResourceFactory.createProperty(CacheOntology.originalPrompt);
+        Property hasGraphQLResult = ResourceFactory.createProperty(CacheOntology.hasGraphQLResult);
+        Property resultEncoding = ResourceFactory.createProperty(CacheOntology.resultEncoding);
+        Property resultSha256 = ResourceFactory.createProperty(CacheOntology.resultSha256);
+        Property resultSize = ResourceFactory.createProperty(CacheOntology.resultSize);
+        Property createdAt = ResourceFactory.createProperty(CacheOntology.createdAt);
+        Instant now = Instant.now();
+
+        store.begin(ReadWrite.WRITE);
+        try {
+            Model model = store.getDefaultModel();
+            for (int i = 0; i < entries; i++) {
+                // Every entry differs, as results of different prompts do
+                String json = repositoriesResponse(nodes).replace("project-", "project" + i + "-");
+                Resource entry = model.createResource(entryURI(i))
+                        .addProperty(RDF.type, cachedEntry)
+                        .addProperty(originalPrompt, "show repositories of user" + i)
+                        .addLiteral(createdAt, model.createTypedLiteral(now.toString(), XSDDatatype.XSDdateTime));
+                if (compressed) {
+                    entry.addProperty(hasGraphQLResult, CachedResultCodec.encode(json))
+                            .addProperty(resultEncoding, CachedResultCodec.GZIP_BASE64)
+                            .addProperty(resultSha256, Hashing.sha256Hex(json))
+                            .addLiteral(resultSize, model.createTypedLiteral(
+                                    (long) json.getBytes(StandardCharsets.UTF_8).length));
+                } else {
+                    entry.addProperty(hasGraphQLResult, json);
+                }
+            }
+            store.commit();
+        } finally {
+            store.end();
+        }
+    }
+
+    /**
+     * Looks up every entry once, as the L2 read of BlazegraphCacheService.fetchCacheEntry does.
+     */
+    private static long[] lookups(Dataset store, int entries) {
+        long[] nanos = new long[entries];
+        for (int i = -WARMUP_LOOKUPS; i < entries; i++) {
+            String subjectURI = entryURI(Math.floorMod(i, entries));
+            String queryString = PREFIXES +
+                    "SELECT ?graphQLResult ?encoding ?sha256 ?createdAt WHERE { " +
+                    "  <" + subjectURI + "> a cache:CachedEntry ; " +
+                    "    cache:hasGraphQLResult ?graphQLResult ; " +
+                    "    cache:createdAt ?createdAt ." +
+                    "  OPTIONAL { <" + subjectURI + "> cache:resultEncoding ?encoding . }" +
+                    "  OPTIONAL { <" + subjectURI + "> cache:resultSha256 ?sha256 . }" +
+                    "} ORDER BY DESC(?createdAt) LIMIT 1";
+
+            long start = System.nanoTime();
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            store.begin(ReadWrite.READ);
+            try (QueryExecution qexec = QueryExecutionFactory.create(QueryFactory.create(queryString), store)) {
+                ResultSetFormatter.outputAsJSON(wire, qexec.execSelect());
+            } finally {
+                store.end();
+            }
+            ResultSet results = ResultSetFactory.fromJSON(new ByteArrayInputStream(wire.toByteArray()));
+            QuerySolution sol = results.nextSolution();
+            String encoding = sol.contains("encoding") ? sol.getLiteral("encoding").getString() : null;
+            String sha256 = sol.contains("sha256") ? sol.getLiteral("sha256").getString() : null;
+            String result = CachedResultCodec.decode(sol.getLiteral("graphQLResult").getString(), encoding, sha256);
+            if (result == null) {
+                throw new IllegalStateException("Stored result failed its SHA-256 check");
+            }
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        return nanos;
+    }
+
+    private static long storeBytes(Dataset store) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.begin(ReadWrite.READ);
+        try {
+            RDFDataMgr.write(out, store.getDefaultModel(), Lang.NTRIPLES);
+        } finally {
+            store.end();
+        }
+        return out.size();
+    }
+
+    private static String entryURI(int i) {
+        return "urn:prompt:show+repositories+of+user" + i;
+    }
+
+    private static String repositoriesResponse(int nodes) {
+        StringBuilder sb = new StringBuilder("{\"data\":{\"user\":{\"repositories\":{\"nodes\":[");
+        for (int i = 0; i < nodes; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":\"project-").append(i)
+                    .append("\",\"description\":\"A sample repository number ").append(i)
+                    .append(" with a short description of what it does\",\"url\":\"https://github.com/octocat/project-")
+                    .append(i).append("\",\"stargazerCount\":").append(i * 37 % 1000)
+                    .append(",\"primaryLanguage\":{\"name\":\"").append((i % 3 == 0) ? "Java" : "TypeScript")
+                    .append("\"}}");
+        }
+        return sb.append("]}}}}").toString();
+    }
+
+    private static long medianMicros(long[] nanos) {
+        return percentileMicros(nanos, 0.50);
+    }
+
+    private static long percentileMicros(long[] nanos, double percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(index, 0)]);
+    }
+}
@@ -0,0 +1,127 @@
+package org.gait.benchmark;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Literal;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.gait.vocabulary.UserHistoryOntology;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user history read latency with all records in the default graph vs. one named graph per user,
+ * as the total number of records grows while one user's history stays the same size.
+ *
+ * Runs the listing query of UserHistoryService against an in-memory Jena dataset, which indexes quads
+ * much like Blazegraph's quads mode. Absolute numbers differ from a Blazegraph journal; the trend with
+ * the total record count is what to look at.
+ *
+ * Not a unit test; run it with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.gait.benchmark.HistoryGraphLayoutComparison -Dexec.classpathScope=test
+ * Optional argument: records per user (default 50).
+ */
+public class HistoryGraphLayoutComparison {
+
+    private static final String PREFIXES = "PREFIX uh: <" + UserHistoryOntology.NS + "> ";
+    private static final int WARMUP_QUERIES = 200;
+    private static final int QUERIES = 500;
+
+    public static void main(String[] args) {
+        int recordsPerUser = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+
+        System.out.printf("%d records per user%n", recordsPerUser);
+        System.out.printf("%-14s %18s %18s%n", "total records", "default graph us", "named graph us");
+        for (int users : new int[]{10, 100, 1000, 4000}) {
+            Dataset defaultGraph = DatasetFactory.createTxnMem();
+            Dataset namedGraphs = DatasetFactory.createTxnMem();
+            load(defaultGraph, namedGraphs, users, recordsPerUser);
+
+            String userId = String.valueOf(users / 2);
+            String patterns =
+                    "  ?s uh:userId \"" + userId + "\" ; a uh:UserHistory ; " +
+                    "     uh:prompt ?prompt ; uh:graphqlResponse ?graphqlResponse ; uh:createdAt ?createdAt . ";
+            String defaultQuery = PREFIXES +
+                    "SELECT ?s ?prompt ?graphqlResponse ?createdAt WHERE { " + patterns + "} ORDER BY ?createdAt ?s";
+            String namedQuery = PREFIXES +
+                    "SELECT ?s ?prompt ?graphqlResponse ?createdAt WHERE { " +
+                    "  GRAPH <urn:userhistory:graph:" + userId + "> { " + patterns + "} } ORDER BY ?createdAt ?s";
+
+            long defaultMicros = medianMicros(defaultGraph, defaultQuery, recordsPerUser);
+            long namedMicros = medianMicros(namedGraphs, namedQuery, recordsPerUser);
+            System.out.printf("%-14d %18d %18d%n", users * recordsPerUser, defaultMicros, namedMicros);
+        }
+    }
+
+    private static void load(Dataset defaultGraph, Dataset namedGraphs, int users, int recordsPerUser) {
+        Property userId = ResourceFactory.createProperty(UserHistoryOntology.userId);
+        Property prompt = ResourceFactory.createProperty(UserHistoryOntology.prompt);
+        Property response = ResourceFactory.createProperty(UserHistoryOntology.graphqlResponse);
+        Property createdAt = ResourceFactory.createProperty(UserHistoryOntology.createdAt);
+        Resource historyClass = ResourceFactory.createResource(UserHistoryOntology.UserHistory);
+        Instant start = Instant.parse("2025-01-01T00:00:00Z");
+
+        defaultGraph.begin(ReadWrite.WRITE);
+        namedGraphs.begin(ReadWrite.WRITE);
+        try {
+            Model all = defaultGraph.getDefaultModel();
+            for (int u = 0; u < users; u++) {
+                Model own = ModelFactory.createDefaultModel();
+                for (int r = 0; r < recordsPerUser; r++) {
+                    Literal timestamp = own.createTypedLiteral(start.plusSeconds((long) u * recordsPerUser + r).toString(),
+                            XSDDatatype.XSDdateTime);
+                    own.createResource("urn:userhistory:" + u + "_prompt" + r + "_" + timestamp.getLexicalForm())
+                            .addProperty(RDF.type, historyClass)
+                            .addProperty(userId, String.valueOf(u))
+                            .addProperty(prompt, "show repositories of user" + r)
+                            .addProperty(response, "{\"data\":{\"user\":{\"name\":\"user" + u + "\"}}}")
+                            .addLiteral(createdAt, timestamp);
+                }
+                all.add(own);
+                namedGraphs.addNamedModel("urn:userhistory:graph:" + u, own);
+            }
+            defaultGraph.commit();
+            namedGraphs.commit();
+        } finally {
+            defaultGraph.end();
+            namedGraphs.end();
+        }
+    }
+
+    private static long medianMicros(Dataset dataset, String queryString, int expectedRows) {
+        long[] nanos = new long[WARMUP_QUERIES + QUERIES];
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            dataset.begin(ReadWrite.READ);
+            try (QueryExecution qexec = QueryExecutionFactory.create(QueryFactory.create(queryString), dataset)) {
+                ResultSet results = qexec.execSelect();
+                int rows = 0;
+                while (results.hasNext()) {
+                    results.next();
+                    rows++;
+                }
+                if (rows != expectedRows) {
+                    throw new IllegalStateException("Expected " + expectedRows + " rows, got " + rows);
+                }
+            } finally {
+                dataset.end();
+            }
+            nanos[i] = System.nanoTime() - start;
+        }
+        long[] measured = Arrays.copyOfRange(nanos, WARMUP_QUERIES, nanos.length);
+        Arrays.sort(measured);
+        return TimeUnit.NANOSECONDS.toMicros(measured[QUERIES / 2]);
+    }
+}
@@ -0,0 +1,276 @@
+package org.gait.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.gait.config.AppConfig;
+import org.gait.database.entity.UserEntity;
+import org.gait.database.service.EndpointCallService;
+import org.gait.service.ClientService;
+import org.mockito.Mockito;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load comparison of the /client/use-api request path on platform threads vs. virtual threads.
+ *
+ * Every request runs the real {@link ClientService#handleClientPrompt} pipeline for a distinct prompt, i.e.
+ * a cache miss: Blazegraph cache lookup, NLP parse, query-cache lookup, Countries GraphQL call and the
+ * write-behind cache saves, through the application's own HTTP clients, pools and executors. The upstreams
+ * are local stubs that answer after a fixed delay, standing in for the network. Only the servlet layer and
+ * Postgres (call counters, mocked) are left out.
+ *
+ * Platform mode runs the requests on a pool the size of Tomcat's default (200 threads); virtual mode starts
+ * one virtual thread per request and sets spring.threads.virtual.enabled, like the web container would
+ * (Java 21+ only). Each mode runs twice: with the default outbound connection pool, and with the pool sized
+ * to the load, since its per-route limits cap concurrent upstream calls whatever the thread mode.
+ * Reports the peak of client.requests.in-flight, throughput, latency percentiles and failed requests.
+ *
+ * Not a unit test; run it on Java 21 with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.gait.benchmark.ThreadModeLoadComparison -Dexec.classpathScope=test
+ * Optional arguments: requests (default 2000), platform pool size (default 200).
+ */
+public class ThreadModeLoadComparison {
+
+    private static final long BLAZEGRAPH_MS = 10;
+    private static final long NLP_PARSE_MS = 40;
+    private static final long GRAPHQL_CALL_MS = 80;
+    private static final int WARMUP_REQUESTS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int platformThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+        // The stubs must keep every pooled connection open, as the real upstreams do
+        System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(requests * 2));
+        HttpServer blazegraph = startStub("/blazegraph/sparql", ThreadModeLoadComparison::blazegraph);
+        HttpServer nlp = startStub("/nlp", ThreadModeLoadComparison::nlp);
+        HttpServer countries = startStub("/countries", ThreadModeLoadComparison::countries);
+        Map<String, Object> endpoints = Map.of(
+                "blazegraph.endpoint", urlOf(blazegraph, "/blazegraph/sparql"),
+                "nlp.endpoint", urlOf(nlp, "/nlp"),
+                "graphql.countries.endpoint", urlOf(countries, "/countries"));
+        System.out.printf("%d concurrent requests, upstream delays: Blazegraph %d ms, NLP %d ms, GraphQL %d ms%n",
+                requests, BLAZEGRAPH_MS, NLP_PARSE_MS, GRAPHQL_CALL_MS);
+
+        try {
+            for (boolean sizedPool : new boolean[]{false, true}) {
+                String pool = sizedPool ? "sized pool" : "default pool";
+                run("platform (" + platformThreads + "), " + pool, false, sizedPool, endpoints, requests,
+                        Executors.newFixedThreadPool(platformThreads));
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    run("virtual, " + pool, true, sizedPool, endpoints, requests, virtual);
+                } else {
+                    System.out.println("virtual: not available on Java " + Runtime.version().feature() + ", needs Java 21+");
+                }
+            }
+        } finally {
+            blazegraph.stop(0);
+            nlp.stop(0);
+            countries.stop(0);
+        }
+    }
+
+    private static void run(String mode, boolean virtualThreads, boolean sizedPool, Map<String, Object> endpoints,
+                            int requests, ExecutorService executor) throws InterruptedException {
+        Map<String, Object> properties = new HashMap<>(endpoints);
+        properties.put("spring.threads.virtual.enabled", virtualThreads);
+        properties.put("logging.level.root", "OFF");
+        properties.put("GITHUB_TOKEN", "");
+        properties.put("rate-limit.enabled", false);
+        if (sizedPool) {
+            properties.put("http.client.max-total", requests);
+            properties.put("http.client.max-per-route", requests);
+            properties.put("http.client.max-per-route.nlp", requests);
+            properties.put("http.client.max-per-route.countries", requests);
+        }
+
+        // Ahead of application.properties
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("load-comparison", properties));
+
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(PipelineConfig.class)
+                .web(WebApplicationType.NONE)
+                .environment(environment)
+                .logStartupInfo(false)
+                .run()) {
+            ClientService clientService = context.getBean(ClientService.class);
+            MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+            UserEntity user = new UserEntity();
+            user.setId(1L);
+
+            // Warm up connections and JIT outside the measurement
+            for (int i = 0; i < WARMUP_REQUESTS; i++) {
+                clientService.handleClientPrompt("warmup C" + i, user);
+            }
+
+            AtomicInteger peakInFlight = new AtomicInteger();
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    int inFlight = (int) meterRegistry.get("client.requests.in-flight").gauge().value();
+                    peakInFlight.accumulateAndGet(inFlight, Math::max);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            sampler.setDaemon(true);
+            sampler.start();
+
+            AtomicInteger failed = new AtomicInteger();
+            long[] latenciesNanos = new long[requests];
+            CountDownLatch done = new CountDownLatch(requests);
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                int request = i;
+                long submitted = System.nanoTime();
+                executor.execute(() -> {
+                    try {
+                        clientService.handleClientPrompt("country C" + request, user);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        latenciesNanos[request] = System.nanoTime() - submitted;
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            long wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            sampler.interrupt();
+            executor.shutdown();
+
+            Arrays.sort(latenciesNanos);
+            System.out.printf("%-32s peak in flight=%5d  wall=%6d ms  throughput=%6.0f req/s  p50=%5d ms  p99=%5d ms  failed=%d%n",
+                    mode, peakInFlight.get(), wallMs, requests * 1000.0 / wallMs,
+                    percentileMs(latenciesNanos, 0.50), percentileMs(latenciesNanos, 0.99), failed.get());
+        }
+    }
+
+    /**
+     * Blazegraph: empty SELECT results (every lookup misses), accepted updates and loads.
+     */
+    private static void blazegraph(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        exchange.getRequestBody().readAllBytes();
+        if (contentType != null && contentType.startsWith("application/sparql-query")) {
+            respond(exchange, BLAZEGRAPH_MS, "application/sparql-results+json",
+                    "{\"head\":{\"vars\":[]},\"results\":{\"bindings\":[]}}");
+        } else {
+            respond(exchange, BLAZEGRAPH_MS, "text/plain", "ok");
+        }
+    }
+
+    /**
+     * NLP: a Countries parse of the country code in the prompt, so every prompt is a distinct query.
+     */
+    private static void nlp(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String code = body.replaceAll("(?s).*(C\\d+).*", "$1");
+        respond(exchange, NLP_PARSE_MS, "application/json",
+                "{\"action\":\"get\",\"target\":\"country\",\"identifier\":\"" + code + "\"," +
+                        "\"fields\":[\"name\",\"capital\"],\"api\":\"COUNTRIES\"}");
+    }
+
+    private static void countries(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        respond(exchange, GRAPHQL_CALL_MS, "application/json",
+                "{\"data\":{\"country\":{\"name\":\"Stubland\",\"capital\":\"Stub City\"}}}");
+    }
+
+    /**
+     * One server per upstream, so each gets its own connection pool route like the real hosts.
+     */
+    private static HttpServer startStub(String path, HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 4096);
+        server.createContext(path, handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private static String urlOf(HttpServer server, String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, long delayMs, String contentType, String body) throws IOException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static long percentileMs(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(index, 0)]);
+    }
+
+    /**
+     * Looked up reflectively so the harness still compiles for the Java 17 build.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The service layer with the application's own HTTP clients and executors; Postgres-backed call
+     * counting is mocked.
+     */
+    @Configuration
+    @ComponentScan("org.gait.service")
+    @Import(AppConfig.class)
+    static class PipelineConfig {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        JdbcTemplate jdbcTemplate() {
+            return Mockito.mock(JdbcTemplate.class);
+        }
+
+        @Bean
+        EndpointCallService endpointCallService() {
+            return Mockito.mock(EndpointCallService.class);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.gait.database.service;
+
+import org.gait.database.entity.UserEntity;
+import org.gait.database.repository.EndpointCallRepository;
+import org.gait.database.repository.EndpointCallRollupRepository;
+import org.gait.database.repository.UserRepository;
+import org.gait.dto.Api;
+import org.gait.dto.CallStatsGranularity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EndpointCallServiceTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private EndpointCallService endpointCallService;
+
+    /**
+     * What the UPSERTs would have added to endpoint_call, per "userId/endpoint".
+     */
+    private final Map<String, Long> persisted = new ConcurrentHashMap<>();
+
+    /**
+     * What the rollup UPSERTs would have added, per granularity.
+     */
+    private final Map<String, Long> rolledUp = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.batchUpdate(anyString(), anyList())).thenAnswer(invocation -> {
+            String sql = invocation.getArgument(0);
+            List<Object[]> rows = invocation.getArgument(1);
+            for (Object[] row : rows) {
+                if (sql.startsWith("INSERT INTO endpoint_call_rollup")) {
+                    rolledUp.merge((String) row[0], (Long) row[4], Long::sum);
+                } else {
+                    persisted.merge(row[0] + "/" + row[1], (Long) row[2], Long::sum);
+                }
+            }
+            return new int[rows.size()];
+        });
+        endpointCallService = new EndpointCallService(
+                mock(UserRepository.class), mock(EndpointCallRepository.class),
+                mock(EndpointCallRollupRepository.class), jdbcTemplate,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)));
+    }
+
+    @Test
+    void noIncrementsLostUnderParallelLoadWithConcurrentFlushes() throws Exception {
+        int threads = 16;
+        int incrementsPerThread = 50_000;
+        List<UserEntity> users = List.of(user(1L), user(2L), user(3L));
+        Api[] apis = Api.values();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread flusher = new Thread(() -> {
+            while (running.get()) {
+                endpointCallService.flush();
+            }
+        });
+        flusher.start();
+
+        Future<?>[] workers = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < incrementsPerThread; i++) {
+                    UserEntity user = users.get((thread + i) % users.size());
+                    Api api = apis[i % apis.length];
+                    if (i % 10 == 0) {
+                        endpointCallService.incrementCallCounts(user, Map.of(api, 1L));
+                    } else {
+                        endpointCallService.incrementCallCount(user, api);
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        running.set(false);
+        flusher.join();
+        pool.shutdown();
+
+        endpointCallService.flushOnShutdown();
+
+        long total = persisted.values().stream().mapToLong(Long::longValue).sum();
+        assertEquals((long) threads * incrementsPerThread, total);
+        assertEquals(users.size() * apis.length, persisted.size());
+        for (CallStatsGranularity granularity : CallStatsGranularity.values()) {
+            assertEquals(total, rolledUp.get(granularity.name()));
+        }
+    }
+
+    @Test
+    void failedFlushKeepsCountsForTheNextFlush() {
+        AtomicInteger attempts = new AtomicInteger();
+        when(jdbcTemplate.batchUpdate(anyString(), anyList())).thenAnswer(invocation -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new DataAccessResourceFailureException("database down");
+            }
+            String sql = invocation.getArgument(0);
+            List<Object[]> rows = invocation.getArgument(1);
+            if (sql.startsWith("INSERT INTO endpoint_call ")) {
+                rows.forEach(row -> persisted.merge(row[0] + "/" + row[1], (Long) row[2], Long::sum));
+            }
+            return new int[rows.size()];
+        });
+
+        endpointCallService.incrementCallCount(user(1L), Api.GITHUB);
+        endpointCallService.incrementCallCount(user(1L), Api.GITHUB);
+        endpointCallService.flush();
+        assertTrue(persisted.isEmpty());
+
+        endpointCallService.incrementCallCount(user(1L), Api.GITHUB);
+        endpointCallService.flush();
+        assertEquals(Map.of("1/GITHUB", 3L), persisted);
+    }
+
+    @Test
+    void flushWithoutCallsSkipsTheDatabase() {
+        endpointCallService.flush();
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), anyList());
+    }
+
+    private static UserEntity user(Long id) {
+        return UserEntity.builder().id(id).email("user" + id + "@example.com").build();
+    }
+}